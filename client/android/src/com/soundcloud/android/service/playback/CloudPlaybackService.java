@@ -34,6 +34,7 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.List;
 
 public class CloudPlaybackService extends Service  {
     private static String TAG = "PlaybackService";
@@ -160,6 +161,8 @@ public class CloudPlaybackService extends Service  {
         }
 
         instance = this;
+        // the queue might have been loaded before the service was started
+        mPlayQueueManager.resolveUpcomingStreams();
     }
 
     @Override
@@ -333,7 +336,9 @@ public class CloudPlaybackService extends Service  {
 
             // if this comes from a shortcut, we may not have the stream url yet. we should get it on info load
             if (currentTrack != null) {
-                mMediaPlayer.setDataSource(mProxy.createUri(currentTrack.getStreamUrl(), null).toString());
+                // every start is another play of the track, even if it has just been played
+                mMediaPlayer.setDataSource(mProxy.createUri(currentTrack.getStreamUrl(), null,
+                        System.currentTimeMillis()).toString());
             }
 
             mMediaPlayer.prepareAsync();
@@ -584,6 +589,13 @@ public class CloudPlaybackService extends Service  {
         return mPlayQueueManager;
     }
 
+    /**
+     * Resolves the stream urls of upcoming tracks ahead of playback.
+     */
+    public void resolveStreamUrls(List<String> streamUrls) {
+        if (mProxy != null && !streamUrls.isEmpty()) mProxy.resolveStreamUrls(streamUrls);
+    }
+
     private void setVolume(float vol) {
         if (mMediaPlayer != null && !state.isError()) {
             try {
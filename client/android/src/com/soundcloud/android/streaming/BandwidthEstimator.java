@@ -0,0 +1,61 @@
+package com.soundcloud.android.streaming;
+
+/**
+ * Estimates throughput and latency of the connection from the timings of finished
+ * downloads, as exponentially weighted moving averages.
+ */
+class BandwidthEstimator {
+    private static final double WEIGHT = 0.3;        // weight of the newest sample
+    private static final int MIN_SAMPLE_BYTES = 16 * 1024; // smaller downloads are dominated by latency
+
+    private double mThroughput;   // bytes per second
+    private double mLatency;      // ms until the response arrives
+    private int mSamples;
+
+    /**
+     * @param bytes    number of bytes downloaded
+     * @param duration total duration of the request, in ms
+     * @param latency  time until the response arrived, in ms
+     */
+    public synchronized void addSample(long bytes, long duration, long latency) {
+        if (duration <= 0 || latency < 0) return;
+
+        mLatency = mSamples == 0 ? latency : WEIGHT * latency + (1 - WEIGHT) * mLatency;
+        if (bytes >= MIN_SAMPLE_BYTES) {
+            final double throughput = bytes * 1000d / duration;
+            mThroughput = mThroughput == 0 ? throughput : WEIGHT * throughput + (1 - WEIGHT) * mThroughput;
+        }
+        mSamples++;
+    }
+
+    public synchronized boolean hasEstimate() {
+        return mThroughput > 0;
+    }
+
+    /**
+     * @return the estimated throughput in bytes per second, or 0 if unknown
+     */
+    public synchronized double getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * @return the estimated latency in ms, or 0 if unknown
+     */
+    public synchronized double getLatency() {
+        return mLatency;
+    }
+
+    public synchronized int getSampleCount() {
+        return mSamples;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BandwidthEstimator{" +
+                "throughput=" + (long) mThroughput +
+                ", latency=" + (long) mLatency +
+                ", samples=" + mSamples +
+                '}';
+    }
+}
@@ -0,0 +1,90 @@
+package com.soundcloud.android.streaming;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A bounded pool of reusable buffers for chunk data, so downloading and reading chunks doesn't
+ * allocate a fresh buffer of a chunk or more every time. Buffers come in multiples of the chunk
+ * size and are handed out as {@link PooledBuffer}s, which return them once released.
+ *
+ * The buffers are heap buffers: chunks are read from the InputStream of the HTTP response,
+ * which can write straight into the array of a heap buffer, but would need yet another copy
+ * for a direct one.
+ */
+class BufferPool {
+    private final int mUnit;
+    private final long mMaxPooled;
+    private final LinkedList<ByteBuffer> mFree = new LinkedList<ByteBuffer>();
+    private long mPooledBytes;
+    private long mAllocated, mReused;
+
+    /**
+     * @param unit      buffer sizes are rounded up to a multiple of this, usually the chunk size
+     * @param maxPooled the maximum number of bytes kept around for reuse
+     */
+    public BufferPool(int unit, long maxPooled) {
+        mUnit = unit;
+        mMaxPooled = maxPooled;
+    }
+
+    /**
+     * @return a buffer with at least size bytes, limited to size
+     */
+    public synchronized PooledBuffer acquire(int size) {
+        ByteBuffer buffer = null;
+        // best fit, but don't waste a big buffer on a small request
+        for (ByteBuffer b : mFree) {
+            if (b.capacity() >= size && b.capacity() <= size * 2 &&
+               (buffer == null || b.capacity() < buffer.capacity())) {
+                buffer = b;
+            }
+        }
+        if (buffer != null) {
+            mFree.remove(buffer);
+            mPooledBytes -= buffer.capacity();
+            mReused++;
+        } else {
+            buffer = ByteBuffer.allocate((size + mUnit - 1) / mUnit * mUnit);
+            mAllocated++;
+        }
+        buffer.clear();
+        buffer.limit(size);
+        return new PooledBuffer(buffer, this);
+    }
+
+    /* package */ synchronized void recycle(ByteBuffer buffer) {
+        // make room by dropping the oldest buffers, recent sizes are more likely to be needed again
+        for (Iterator<ByteBuffer> it = mFree.iterator(); mPooledBytes + buffer.capacity() > mMaxPooled && it.hasNext(); ) {
+            mPooledBytes -= it.next().capacity();
+            it.remove();
+        }
+        if (mPooledBytes + buffer.capacity() <= mMaxPooled) {
+            mFree.add(buffer);
+            mPooledBytes += buffer.capacity();
+        }
+    }
+
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    public synchronized long getAllocatedCount() {
+        return mAllocated;
+    }
+
+    public synchronized long getReusedCount() {
+        return mReused;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BufferPool{" +
+                "pooled=" + mPooledBytes +
+                ", free=" + mFree.size() +
+                ", allocated=" + mAllocated +
+                ", reused=" + mReused +
+                '}';
+    }
+}
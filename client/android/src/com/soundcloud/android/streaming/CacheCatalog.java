@@ -0,0 +1,259 @@
+package com.soundcloud.android.streaming;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bookkeeping of everything held in the stream cache, keyed by url hash. Used to decide
+ * which items get evicted once the cache goes over budget, and to answer space queries
+ * without walking the cache directories. The catalog is persisted, so it doesn't have to be
+ * rebuilt from the filesystem on every start.
+ */
+class CacheCatalog {
+    private static final int VERSION = 1;
+
+    private final Map<String, Entry> mEntries = new HashMap<String, Entry>();
+    // removed before the persisted catalog got merged in, must not come back from it
+    private final Set<String> mRemovedBeforeLoad = new HashSet<String>();
+    private long mUsedSpace;
+    private boolean mLoaded;
+
+    static class Entry {
+        final String urlHash;
+        long size;
+        long lastAccess;
+        int hits;
+        boolean complete;
+        String etag;
+
+        Entry(String urlHash) {
+            this.urlHash = urlHash;
+        }
+
+        Entry copy() {
+            Entry e = new Entry(urlHash);
+            e.size = size;
+            e.lastAccess = lastAccess;
+            e.hits = hits;
+            e.complete = complete;
+            e.etag = etag;
+            return e;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "urlHash='" + urlHash + '\'' +
+                    ", size=" + size +
+                    ", lastAccess=" + lastAccess +
+                    ", hits=" + hits +
+                    ", complete=" + complete +
+                    ", etag='" + etag + '\'' +
+                    '}';
+        }
+    }
+
+    /** least recently used first, ties broken by least frequently used */
+    static final Comparator<Entry> EVICTION_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.lastAccess != rhs.lastAccess) {
+                return lhs.lastAccess < rhs.lastAccess ? -1 : 1;
+            } else {
+                return lhs.hits < rhs.hits ? -1 : (lhs.hits == rhs.hits ? 0 : 1);
+            }
+        }
+    };
+
+    public synchronized void touch(String urlHash) {
+        Entry e = getOrCreate(urlHash);
+        e.lastAccess = System.currentTimeMillis();
+        e.hits++;
+    }
+
+    public synchronized void addSize(String urlHash, long bytes) {
+        Entry e = getOrCreate(urlHash);
+        e.size += bytes;
+        mUsedSpace += bytes;
+    }
+
+    public synchronized void setSize(String urlHash, long bytes) {
+        Entry e = getOrCreate(urlHash);
+        mUsedSpace += bytes - e.size;
+        e.size = bytes;
+    }
+
+    /**
+     * Records an entry found on disk. The size on disk always wins, access information
+     * gathered since startup is kept if it is more recent.
+     */
+    public synchronized void updateFromDisk(String urlHash, long size, long lastModified) {
+        Entry e = getOrCreate(urlHash);
+        mUsedSpace += size - e.size;
+        e.size = size;
+        e.lastAccess = Math.max(e.lastAccess, lastModified);
+    }
+
+    public synchronized void setComplete(String urlHash, long size, String etag) {
+        setSize(urlHash, size);
+        Entry e = mEntries.get(urlHash);
+        e.complete = true;
+        e.etag = etag;
+    }
+
+    public synchronized Entry remove(String urlHash) {
+        if (!mLoaded) mRemovedBeforeLoad.add(urlHash);
+        Entry e = mEntries.remove(urlHash);
+        if (e != null) mUsedSpace -= e.size;
+        return e;
+    }
+
+    public synchronized boolean contains(String urlHash) {
+        return mEntries.containsKey(urlHash);
+    }
+
+    public synchronized boolean isComplete(String urlHash) {
+        Entry e = mEntries.get(urlHash);
+        return e != null && e.complete;
+    }
+
+    /**
+     * @return the etag recorded when the item was completed, or null
+     */
+    public synchronized String etagOf(String urlHash) {
+        Entry e = mEntries.get(urlHash);
+        return e != null && e.complete ? e.etag : null;
+    }
+
+    /**
+     * Merges entries loaded from disk with everything recorded since startup and marks the
+     * catalog as loaded. Information gathered since startup is more recent and wins, entries
+     * removed in the meantime are dropped.
+     */
+    public synchronized void merge(List<Entry> loaded) {
+        for (Entry l : loaded) {
+            if (mRemovedBeforeLoad.contains(l.urlHash)) continue;
+
+            Entry e = getOrCreate(l.urlHash);
+            // chunks stored since startup have only been counted from zero, so this is approximate
+            if (l.size > e.size) {
+                mUsedSpace += l.size - e.size;
+                e.size = l.size;
+            }
+            e.lastAccess = Math.max(e.lastAccess, l.lastAccess);
+            e.hits += l.hits;
+            if (!e.complete && l.complete) {
+                e.complete = true;
+                e.etag = l.etag;
+            }
+        }
+        setLoaded();
+    }
+
+    public synchronized void setLoaded() {
+        mLoaded = true;
+        mRemovedBeforeLoad.clear();
+    }
+
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    public synchronized long getUsedSpace() {
+        return mUsedSpace;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return a snapshot of all entries, sorted in the order they should be evicted
+     */
+    public synchronized List<Entry> evictionCandidates() {
+        List<Entry> entries = new ArrayList<Entry>(mEntries.values());
+        Collections.sort(entries, EVICTION_ORDER);
+        return entries;
+    }
+
+    /**
+     * Writes a snapshot of the catalog to a temporary file first, and moves it into place
+     * once it has been written completely.
+     */
+    public void toFile(File f) throws IOException {
+        final List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<Entry>(mEntries.size());
+            for (Entry e : mEntries.values()) entries.add(e.copy());
+        }
+
+        final File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            dos.writeInt(VERSION);
+            dos.writeInt(entries.size());
+            for (Entry e : entries) {
+                dos.writeUTF(e.urlHash);
+                dos.writeLong(e.size);
+                dos.writeLong(e.lastAccess);
+                dos.writeInt(e.hits);
+                dos.writeBoolean(e.complete);
+                dos.writeUTF(e.etag == null ? "" : e.etag);
+            }
+        } finally {
+            dos.close();
+        }
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            throw new IOException("could not rename " + tmp + " to " + f);
+        }
+    }
+
+    public static List<Entry> fromFile(File f) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            final int version = dis.readInt();
+            if (version != VERSION) throw new IOException("unknown catalog version " + version);
+
+            final int count = dis.readInt();
+            if (count < 0) throw new IOException("invalid entry count " + count);
+            final List<Entry> entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                Entry e = new Entry(dis.readUTF());
+                e.size = dis.readLong();
+                e.lastAccess = dis.readLong();
+                e.hits = dis.readInt();
+                e.complete = dis.readBoolean();
+                final String etag = dis.readUTF();
+                e.etag = etag.length() == 0 ? null : etag;
+                entries.add(e);
+            }
+            return entries;
+        } finally {
+            dis.close();
+        }
+    }
+
+    private Entry getOrCreate(String urlHash) {
+        Entry e = mEntries.get(urlHash);
+        if (e == null) {
+            e = new Entry(urlHash);
+            mEntries.put(urlHash, e);
+        }
+        return e;
+    }
+}
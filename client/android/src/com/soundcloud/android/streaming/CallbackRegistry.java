@@ -0,0 +1,124 @@
+package com.soundcloud.android.streaming;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Futures indexed by the chunks of their item they are waiting for, so a chunk arriving only
+ * concerns the futures which need it, instead of all registered ones.
+ */
+class CallbackRegistry {
+    private final Map<StreamItem, Waiters> mItems = new HashMap<StreamItem, Waiters>();
+    private final Map<StreamFuture, Index> mWaiting = new HashMap<StreamFuture, Index>();
+
+    private static class Waiters {
+        final Set<StreamFuture> futures = new LinkedHashSet<StreamFuture>();
+        final Map<Integer, List<StreamFuture>> byChunk = new HashMap<Integer, List<StreamFuture>>();
+    }
+
+    /**
+     * Registers the future for the given chunks of its item, replacing an earlier registration.
+     */
+    public synchronized void add(StreamFuture future, Index chunks) {
+        if (chunks.isEmpty()) throw new IllegalArgumentException("need at least one chunk to wait for");
+
+        remove(future);
+        final Index waiting = (Index) chunks.clone();
+        mWaiting.put(future, waiting);
+
+        Waiters waiters = mItems.get(future.item);
+        if (waiters == null) {
+            waiters = new Waiters();
+            mItems.put(future.item, waiters);
+        }
+        waiters.futures.add(future);
+        for (int chunk : waiting) {
+            List<StreamFuture> futures = waiters.byChunk.get(chunk);
+            if (futures == null) {
+                futures = new ArrayList<StreamFuture>(2);
+                waiters.byChunk.put(chunk, futures);
+            }
+            futures.add(future);
+        }
+    }
+
+    /**
+     * @return true if the future was registered
+     */
+    public synchronized boolean remove(StreamFuture future) {
+        final Index waiting = mWaiting.remove(future);
+        if (waiting == null) return false;
+
+        final Waiters waiters = mItems.get(future.item);
+        waiters.futures.remove(future);
+        for (int chunk : waiting) {
+            final List<StreamFuture> futures = waiters.byChunk.get(chunk);
+            futures.remove(future);
+            if (futures.isEmpty()) waiters.byChunk.remove(chunk);
+        }
+        if (waiters.futures.isEmpty()) mItems.remove(future.item);
+        return true;
+    }
+
+    public synchronized boolean contains(StreamFuture future) {
+        return mWaiting.containsKey(future);
+    }
+
+    /**
+     * @return the futures waiting for the chunk, they stay registered
+     */
+    public synchronized List<StreamFuture> waitingFor(StreamItem item, int chunkIndex) {
+        final Waiters waiters = mItems.get(item);
+        final List<StreamFuture> futures = waiters == null ? null : waiters.byChunk.get(chunkIndex);
+        return futures == null ? Collections.<StreamFuture>emptyList() : new ArrayList<StreamFuture>(futures);
+    }
+
+    /**
+     * Marks the chunk as no longer missing for the futures waiting for it.
+     *
+     * @return the futures which now have all their chunks, they are no longer registered
+     */
+    public synchronized List<StreamFuture> chunkAvailable(StreamItem item, int chunkIndex) {
+        final Waiters waiters = mItems.get(item);
+        final List<StreamFuture> futures = waiters == null ? null : waiters.byChunk.remove(chunkIndex);
+        if (futures == null) return Collections.emptyList();
+
+        final List<StreamFuture> complete = new ArrayList<StreamFuture>();
+        for (StreamFuture future : futures) {
+            final Index waiting = mWaiting.get(future);
+            waiting.clear(chunkIndex);
+            if (waiting.isEmpty()) {
+                mWaiting.remove(future);
+                waiters.futures.remove(future);
+                complete.add(future);
+            }
+        }
+        if (waiters.futures.isEmpty()) mItems.remove(item);
+        return complete;
+    }
+
+    /**
+     * @return the futures registered for the item, in the order they were added
+     */
+    public synchronized List<StreamFuture> futuresFor(StreamItem item) {
+        final Waiters waiters = mItems.get(item);
+        return waiters == null ? Collections.<StreamFuture>emptyList() : new ArrayList<StreamFuture>(waiters.futures);
+    }
+
+    public synchronized int size() {
+        return mWaiting.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CallbackRegistry{" +
+                "waiting=" + mWaiting.size() +
+                ", items=" + mItems.size() +
+                '}';
+    }
+}
@@ -0,0 +1,122 @@
+package com.soundcloud.android.streaming;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded in-memory LRU cache of recently stored or read chunks, so chunks requested again
+ * after a seek or reconnect don't have to be read from disk. Buffers are shared read-only,
+ * every caller gets its own view, which has to be released. Pooled buffers go back to their
+ * pool once evicted and released by everyone who got them from the cache.
+ */
+class ChunkCache {
+    private final long mMaxSize;
+    private long mSize;
+    private long mHits, mMisses;
+
+    private final LinkedHashMap<Key, PooledBuffer> mChunks = new LinkedHashMap<Key, PooledBuffer>(16, 0.75f, true);
+
+    public ChunkCache(long maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return a read-only view of the cached chunk, to be released by the caller, or null
+     */
+    public synchronized PooledBuffer get(String urlHash, int chunkIndex) {
+        final PooledBuffer buffer = mChunks.get(new Key(urlHash, chunkIndex));
+        if (buffer != null) {
+            mHits++;
+            return buffer.retain();
+        } else {
+            mMisses++;
+            return null;
+        }
+    }
+
+    /**
+     * Caches the remaining bytes of the buffer, the cache keeps its own view.
+     */
+    public synchronized void put(String urlHash, int chunkIndex, PooledBuffer data) {
+        if (data.remaining() > mMaxSize) return;
+        final PooledBuffer buffer = data.view(data.data().slice().asReadOnlyBuffer());
+
+        final PooledBuffer previous = mChunks.put(new Key(urlHash, chunkIndex), buffer);
+        if (previous != null) {
+            mSize -= previous.remaining();
+            previous.release();
+        }
+        mSize += buffer.remaining();
+
+        for (Iterator<PooledBuffer> it = mChunks.values().iterator(); mSize > mMaxSize && it.hasNext(); ) {
+            final PooledBuffer evicted = it.next();
+            mSize -= evicted.remaining();
+            evicted.release();
+            it.remove();
+        }
+    }
+
+    public synchronized void removeItem(String urlHash) {
+        for (Iterator<Map.Entry<Key, PooledBuffer>> it = mChunks.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Key, PooledBuffer> e = it.next();
+            if (e.getKey().urlHash.equals(urlHash)) {
+                mSize -= e.getValue().remaining();
+                e.getValue().release();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (PooledBuffer buffer : mChunks.values()) buffer.release();
+        mChunks.clear();
+        mSize = 0;
+    }
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ChunkCache{" +
+                "chunks=" + mChunks.size() +
+                ", size=" + mSize +
+                ", maxSize=" + mMaxSize +
+                ", hits=" + mHits +
+                ", misses=" + mMisses +
+                '}';
+    }
+
+    private static final class Key {
+        final String urlHash;
+        final int chunkIndex;
+
+        Key(String urlHash, int chunkIndex) {
+            this.urlHash = urlHash;
+            this.chunkIndex = chunkIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return chunkIndex == key.chunkIndex && urlHash.equals(key.urlHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * urlHash.hashCode() + chunkIndex;
+        }
+    }
+}
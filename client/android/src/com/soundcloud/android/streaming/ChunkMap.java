@@ -0,0 +1,155 @@
+package com.soundcloud.android.streaming;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Keeps track of downloaded chunks, where they are stored in the chunk file and their CRC32.
+ * Chunks occupy slots in the order they were added, lookups in both directions are O(1).
+ * Removed chunks leave an empty slot behind, as their data is still in the file.
+ */
+class ChunkMap {
+    private static final int INITIAL_CAPACITY = 16;
+    static final int EMPTY_SLOT = -1;
+
+    private final BitSet mPresent = new BitSet();
+    private final BitSet mHasCrc = new BitSet();
+    private int[] mSlots  = newArray(INITIAL_CAPACITY);  // chunk index -> slot
+    private int[] mCrcs   = newArray(INITIAL_CAPACITY);  // chunk index -> crc32
+    private int[] mChunks = newArray(INITIAL_CAPACITY);  // slot -> chunk index
+    private int mSlotCount;
+    private int mSize;
+
+    public synchronized boolean contains(int chunkIndex) {
+        return chunkIndex >= 0 && mPresent.get(chunkIndex);
+    }
+
+    /**
+     * @return the slot of the chunk in the chunk file
+     */
+    public synchronized int add(int chunkIndex) {
+        if (chunkIndex < 0) throw new IllegalArgumentException("invalid chunk index " + chunkIndex);
+        if (mPresent.get(chunkIndex)) return mSlots[chunkIndex];
+
+        if (chunkIndex >= mSlots.length) {
+            mSlots = grow(mSlots, chunkIndex + 1);
+            mCrcs = grow(mCrcs, mSlots.length);
+        }
+        final int slot = nextSlot();
+        mSlots[chunkIndex] = slot;
+        mChunks[slot] = chunkIndex;
+        mPresent.set(chunkIndex);
+        mSize++;
+        return slot;
+    }
+
+    /**
+     * @return the slot of the chunk in the chunk file
+     */
+    public synchronized int add(int chunkIndex, int crc) {
+        final int slot = add(chunkIndex);
+        setCrc(chunkIndex, crc);
+        return slot;
+    }
+
+    public synchronized void setCrc(int chunkIndex, int crc) {
+        if (!contains(chunkIndex)) throw new IllegalArgumentException("chunk " + chunkIndex + " not present");
+        mCrcs[chunkIndex] = crc;
+        mHasCrc.set(chunkIndex);
+    }
+
+    public synchronized boolean hasCrc(int chunkIndex) {
+        return contains(chunkIndex) && mHasCrc.get(chunkIndex);
+    }
+
+    public synchronized int crcOf(int chunkIndex) {
+        if (!hasCrc(chunkIndex)) throw new IllegalArgumentException("no crc for chunk " + chunkIndex);
+        return mCrcs[chunkIndex];
+    }
+
+    /**
+     * Removes a chunk, its slot stays occupied.
+     * @return true if the chunk was present
+     */
+    public synchronized boolean remove(int chunkIndex) {
+        if (!contains(chunkIndex)) return false;
+
+        mChunks[mSlots[chunkIndex]] = EMPTY_SLOT;
+        mSlots[chunkIndex] = EMPTY_SLOT;
+        mPresent.clear(chunkIndex);
+        mHasCrc.clear(chunkIndex);
+        mSize--;
+        return true;
+    }
+
+    /**
+     * Occupies the next slot without a chunk, used when restoring a map with removed chunks.
+     */
+    public synchronized void skipSlot() {
+        mChunks[nextSlot()] = EMPTY_SLOT;
+    }
+
+    /**
+     * @return the slot of the chunk in the chunk file, or -1 if it has not been downloaded
+     */
+    public synchronized int slotOf(int chunkIndex) {
+        return contains(chunkIndex) ? mSlots[chunkIndex] : -1;
+    }
+
+    public synchronized int chunkAt(int slot) {
+        if (slot < 0 || slot >= mSlotCount) throw new IndexOutOfBoundsException("slot " + slot + ", size " + mSlotCount);
+        return mChunks[slot];
+    }
+
+    /**
+     * @return true if every chunk is stored in the slot matching its index
+     */
+    public synchronized boolean isOrdered() {
+        for (int slot = 0; slot < mSlotCount; slot++) {
+            if (mChunks[slot] != slot) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of chunks present
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @return the chunk indexes in slot order, {@link #EMPTY_SLOT} for slots of removed chunks
+     */
+    public synchronized int[] toArray() {
+        final int[] chunks = new int[mSlotCount];
+        System.arraycopy(mChunks, 0, chunks, 0, mSlotCount);
+        return chunks;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    private int nextSlot() {
+        if (mSlotCount >= mChunks.length) mChunks = grow(mChunks, mSlotCount + 1);
+        return mSlotCount++;
+    }
+
+    private static int[] grow(int[] array, int minCapacity) {
+        final int[] grown = newArray(Math.max(minCapacity, array.length * 2));
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static int[] newArray(int capacity) {
+        final int[] array = new int[capacity];
+        Arrays.fill(array, -1);
+        return array;
+    }
+}
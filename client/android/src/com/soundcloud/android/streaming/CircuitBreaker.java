@@ -0,0 +1,134 @@
+package com.soundcloud.android.streaming;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops sending requests to a host after it has failed repeatedly. Once the circuit is open,
+ * requests are refused until a cool-down has passed, then a single request is let through
+ * (half-open): if it succeeds the circuit closes again, otherwise it stays open for longer.
+ * Regaining connectivity closes all circuits, there's no point in waiting any longer then.
+ */
+class CircuitBreaker {
+    static final int FAILURE_THRESHOLD = 3;
+    static final long MIN_OPEN_TIME = 5 * 1000;
+    static final long MAX_OPEN_TIME = 5 * 60 * 1000;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final Map<String, Circuit> mCircuits = new HashMap<String, Circuit>();
+
+    private static class Circuit {
+        State state = State.CLOSED;
+        int failures;
+        long openTime = MIN_OPEN_TIME;
+        long openUntil;
+        boolean trialRunning;
+
+        @Override
+        public String toString() {
+            return state + (state == State.CLOSED ? "" : "(" + failures + " failures)");
+        }
+    }
+
+    /**
+     * @return true if a request to the host may be sent now. In half-open state this lets only
+     *         one trial request through, which has to be reported back.
+     */
+    public synchronized boolean allowRequest(String host) {
+        final Circuit c = mCircuits.get(host);
+        if (c == null) return true;
+
+        switch (c.state) {
+            case OPEN:
+                if (SystemClock.elapsedRealtime() < c.openUntil) return false;
+                c.state = State.HALF_OPEN;
+                // fall through
+            case HALF_OPEN:
+                if (c.trialRunning) return false;
+                c.trialRunning = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return true if requests to the host are refused at the moment, without taking the trial
+     *         request of a half-open circuit
+     */
+    public synchronized boolean isOpen(String host) {
+        final Circuit c = mCircuits.get(host);
+        return c != null && (c.state == State.OPEN ?
+                SystemClock.elapsedRealtime() < c.openUntil : c.state == State.HALF_OPEN && c.trialRunning);
+    }
+
+    /**
+     * @return milliseconds until a request to the host will be let through again, 0 if it is now
+     */
+    public synchronized long retryAfter(String host) {
+        final Circuit c = mCircuits.get(host);
+        if (c == null || c.state != State.OPEN) return 0;
+        return Math.max(0, c.openUntil - SystemClock.elapsedRealtime());
+    }
+
+    public synchronized void onSuccess(String host) {
+        mCircuits.remove(host);
+    }
+
+    /**
+     * @return the state of the circuit after the failure
+     */
+    public synchronized State onFailure(String host) {
+        Circuit c = mCircuits.get(host);
+        if (c == null) {
+            c = new Circuit();
+            mCircuits.put(host, c);
+        }
+        c.failures++;
+        if (c.state == State.HALF_OPEN) {
+            // trial failed, stay away for longer
+            c.openTime = Math.min(MAX_OPEN_TIME, c.openTime * 2);
+            open(c);
+        } else if (c.state == State.CLOSED && c.failures >= FAILURE_THRESHOLD) {
+            open(c);
+        }
+        return c.state;
+    }
+
+    /**
+     * Reports a request which has been given up without an outcome, so a half-open circuit can
+     * let the next trial through.
+     */
+    public synchronized void onAbandoned(String host) {
+        final Circuit c = mCircuits.get(host);
+        if (c != null) c.trialRunning = false;
+    }
+
+    /**
+     * Closes all circuits, to be called when the device gets connected again.
+     */
+    public synchronized void reset() {
+        mCircuits.clear();
+    }
+
+    public synchronized State getState(String host) {
+        final Circuit c = mCircuits.get(host);
+        return c == null ? State.CLOSED : c.state;
+    }
+
+    private static void open(Circuit c) {
+        c.state = State.OPEN;
+        c.trialRunning = false;
+        c.openUntil = SystemClock.elapsedRealtime() + c.openTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{" +
+                "circuits=" + mCircuits +
+                '}';
+    }
+}
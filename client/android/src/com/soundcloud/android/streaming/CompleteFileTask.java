@@ -11,22 +11,34 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.List;
 
 class CompleteFileTask extends AsyncTask<File, Integer, Boolean> {
     static final long MAX_MD5_CHECK_SIZE = 5 * 1024*1024; // don't md5 check files over 5MB
 
     private long mContentLength;
     private String mEtag;
-    private List<Integer> mIndexes;
+    private ChunkMap mIndexes;
+    private boolean mPositional;
+    private String mContentMd5;
 
     private int mChunkSize;
 
-    public CompleteFileTask(long length, String etag, int chunkSize, List<Integer> indexes) {
+    public CompleteFileTask(long length, String etag, int chunkSize, ChunkMap indexes) {
+        this(length, etag, chunkSize, indexes, false, null);
+    }
+
+    /**
+     * @param positional true if chunks have been written to their final position in the chunk file
+     * @param contentMd5 the md5 computed while downloading, or null to compute it from the complete file
+     */
+    public CompleteFileTask(long length, String etag, int chunkSize, ChunkMap indexes, boolean positional,
+                            String contentMd5) {
         mIndexes = indexes;
         mChunkSize = chunkSize;
         mContentLength = length;
         mEtag = etag;
+        mPositional = positional;
+        mContentMd5 = contentMd5;
     }
 
     @Override
@@ -47,7 +59,7 @@ class CompleteFileTask extends AsyncTask<File, Integer, Boolean> {
             return false;
         }
         // optimization - if chunks have been written in order, just move and truncate file
-        else if (isOrdered(mIndexes)) {
+        else if (mPositional || mIndexes.isOrdered()) {
             if (Log.isLoggable(LOG_TAG, Log.DEBUG))
                 Log.d(LOG_TAG, "chunk file is already in order, moving");
             return move(chunkFile, completeFile) && checkEtag(completeFile, mEtag);
@@ -59,9 +71,17 @@ class CompleteFileTask extends AsyncTask<File, Integer, Boolean> {
     }
 
     private boolean checkEtag(File file, String etag) {
-        if (etag == null || file.length() > MAX_MD5_CHECK_SIZE) return true;
-
-        final String calculatedEtag = '"'+ IOUtils.md5(file)+'"';
+        if (etag == null) return true;
+
+        final String calculatedEtag;
+        if (mContentMd5 != null) {
+            // digest was computed while downloading, no need to read the file again
+            calculatedEtag = '"'+ mContentMd5 +'"';
+        } else if (file.length() > MAX_MD5_CHECK_SIZE) {
+            return true;
+        } else {
+            calculatedEtag = '"'+ IOUtils.md5(file)+'"';
+        }
         if (!calculatedEtag.equals(etag)) {
             Log.w(LOG_TAG, "etag " +etag+ " for complete file "+ file + " does not match "+calculatedEtag);
             return false;
@@ -71,12 +91,18 @@ class CompleteFileTask extends AsyncTask<File, Integer, Boolean> {
     private Boolean move(File chunkFile, File completeFile) {
         if (chunkFile.renameTo(completeFile)) {
             if (completeFile.length() != mContentLength) {
+                RandomAccessFile raf = null;
                 try {
-                    new RandomAccessFile(completeFile, "rw").setLength(mContentLength);
+                    raf = new RandomAccessFile(completeFile, "rw");
+                    raf.setLength(mContentLength);
                     return true;
                 } catch (IOException e) {
                     Log.w(LOG_TAG, e);
+                } finally {
+                    IOUtils.close(raf);
                 }
+            } else {
+                return true;
             }
         } else {
             Log.w(LOG_TAG, "error moving file");
@@ -84,15 +110,6 @@ class CompleteFileTask extends AsyncTask<File, Integer, Boolean> {
         return false;
     }
 
-    private boolean isOrdered(Iterable<Integer> indexes) {
-        int last = 0;
-        for (int i : indexes) {
-            if (last > i) return false;
-            last = i;
-        }
-        return true;
-    }
-
     private Boolean reassembleFile(File chunkFile, File completeFile) {
         FileOutputStream fos = null;
         RandomAccessFile raf = null;
@@ -102,7 +119,7 @@ class CompleteFileTask extends AsyncTask<File, Integer, Boolean> {
 
             byte[] buffer = new byte[mChunkSize];
             for (int chunkNumber = 0; chunkNumber < mIndexes.size(); chunkNumber++) {
-                int offset = mChunkSize * mIndexes.indexOf(chunkNumber);
+                int offset = mChunkSize * mIndexes.slotOf(chunkNumber);
                 raf.seek(offset);
                 raf.readFully(buffer, 0, mChunkSize);
 
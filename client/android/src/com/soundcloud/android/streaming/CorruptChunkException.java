@@ -0,0 +1,18 @@
+package com.soundcloud.android.streaming;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a stored chunk does not match its checksum. The chunk has been removed from
+ * storage at this point and needs to be fetched again.
+ */
+class CorruptChunkException extends IOException {
+    final String url;
+    final int chunkIndex;
+
+    public CorruptChunkException(String url, int chunkIndex) {
+        super("chunk " + chunkIndex + " of " + url + " is corrupt");
+        this.url = url;
+        this.chunkIndex = chunkIndex;
+    }
+}
@@ -1,20 +1,18 @@
 package com.soundcloud.android.streaming;
 
-import com.soundcloud.android.utils.BufferUtils;
 import com.soundcloud.api.ApiWrapper;
 import com.soundcloud.api.Request;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
 
-import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.Locale;
@@ -23,9 +21,31 @@ abstract class DataTask extends StreamItemTask {
     static final String LOG_TAG = StreamLoader.LOG_TAG;
 
     final Range byteRange, chunkRange;
-    final ByteBuffer buffer;
+    final int chunkSize;
 
-    public DataTask(StreamItem item, Range chunkRange, Range byteRange, ApiWrapper api) {
+    private final BufferPool mPool;
+    private PooledBuffer mBuffer;      // taken from the pool when the task runs first, until released
+    private ByteBuffer buffer;
+    private ChunkListener mListener;
+    private volatile int mChunksRead;  // chunks passed on to the listener, counting from the start of the range
+    private long mResponseTime;        // when the response to the current attempt arrived
+
+    /**
+     * Receives every chunk of the range as soon as it has been read completely, while the
+     * rest of the range is still downloading. Called on the thread executing the task.
+     * The buffers are only valid during the call, listeners keeping them have to
+     * {@link PooledBuffer#retain()} them.
+     */
+    interface ChunkListener {
+        /**
+         * @param received the bytes of the chunk received so far
+         */
+        void onChunkProgress(DataTask task, int chunkIndex, PooledBuffer received);
+
+        void onChunkRead(DataTask task, int chunkIndex, PooledBuffer chunk);
+    }
+
+    public DataTask(StreamItem item, Range chunkRange, Range byteRange, ApiWrapper api, BufferPool pool) {
         super(item, api);
         if (byteRange == null) throw new IllegalArgumentException("byterange cannot be null");
         if (chunkRange == null) throw new IllegalArgumentException("chunkRange cannot be null");
@@ -37,30 +57,159 @@ abstract class DataTask extends StreamItemTask {
         }
         this.byteRange = byteRange;
         this.chunkRange = chunkRange;
-        buffer = ByteBuffer.allocate(byteRange.length);
+        // the byte range always covers whole chunks
+        chunkSize = byteRange.length / chunkRange.length;
+        mPool = pool;
     }
 
+    /**
+     * Reads the response into dst, using {@link #read(InputStream, ByteBuffer)} so chunks get
+     * passed on while the download is still running.
+     */
     protected abstract int getData(URL url, int start, int end, ByteBuffer dst) throws IOException;
 
+    public DataTask setChunkListener(ChunkListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * @return the number of chunks from the start of the range which have been read completely
+     */
+    public int chunksRead() {
+        return mChunksRead;
+    }
+
+    /**
+     * @return the chunks which have not been read yet, or null
+     */
+    public Range unreadChunks() {
+        final int read = mChunksRead;
+        return read < chunkRange.length ? Range.from(chunkRange.start + read, chunkRange.length - read) : null;
+    }
+
+    /**
+     * To be called by implementations once the response headers have arrived.
+     */
+    protected void onResponse() {
+        mResponseTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Hands the buffer back to the pool, to be called once the result of the task has been
+     * handled. Chunks passed on to the listener stay valid as long as they are retained.
+     */
+    public void release() {
+        if (mBuffer != null) {
+            mBuffer.release();
+            mBuffer = null;
+            buffer = null;
+        }
+    }
+
+    protected void read(InputStream is, ByteBuffer dst) throws IOException {
+        // straight into the buffer, in small steps so progress gets passed on
+        int n;
+        while (dst.hasRemaining() &&
+              (n = is.read(dst.array(), dst.arrayOffset() + dst.position(), Math.min(dst.remaining(), 8192))) != -1) {
+            dst.position(dst.position() + n);
+            onDataRead(dst);
+        }
+        if (!dst.hasRemaining() && is.read() != -1) {
+            throw new IOException("received more data than requested");
+        }
+    }
+
+    private void onDataRead(ByteBuffer dst) {
+        while (mChunksRead < chunkRange.length && dst.position() >= (mChunksRead + 1) * chunkSize) {
+            publishChunk(dst.position());
+        }
+        final int chunkStart = mChunksRead * chunkSize;
+        if (mListener != null && mChunksRead < chunkRange.length && dst.position() > chunkStart) {
+            final ByteBuffer received = buffer.duplicate();
+            received.limit(dst.position());
+            received.position(chunkStart);
+            final PooledBuffer view = mBuffer.view(received.slice());
+            try {
+                mListener.onChunkProgress(this, chunkRange.start + mChunksRead, view);
+            } finally {
+                view.release();
+            }
+        }
+    }
+
+    private void publishChunk(int position) {
+        final ByteBuffer chunk = buffer.duplicate();
+        chunk.limit(Math.min(position, (mChunksRead + 1) * chunkSize));
+        chunk.position(mChunksRead * chunkSize);
+        final int chunkIndex = chunkRange.start + mChunksRead;
+        mChunksRead++;
+        if (mListener != null) {
+            final PooledBuffer view = mBuffer.view(chunk.slice());
+            try {
+                mListener.onChunkRead(this, chunkIndex, view);
+            } finally {
+                view.release();
+            }
+        }
+    }
+
+    @Override
+    public String host() {
+        final URL redirect = item.redirectUrl();
+        return redirect == null ? "" : redirect.getHost();
+    }
+
     @Override
     public Bundle execute() throws IOException {
         if (Log.isLoggable(LOG_TAG, Log.DEBUG))
-            Log.d(LOG_TAG, String.format("fetching chunk %d for item %s with range %s", chunkRange.start, item, byteRange));
+            Log.d(LOG_TAG, String.format("fetching chunks %s for item %s with range %s", chunkRange, item, byteRange));
 
         final Bundle b = new Bundle();
         final URL redirect = item.redirectUrl();
         if (redirect == null) {
             return b;
         }
-        // need to rewind buffer - request might get retried later.
-        buffer.rewind();
+        if (isCancelled()) {
+            return b;
+        }
+        // request might be a retry, chunks read by an earlier attempt are not fetched again
+        final int offset = mChunksRead * chunkSize;
+        if (offset >= byteRange.length) {
+            b.putBoolean("success", true);
+            return b;
+        }
+        if (mBuffer == null) {
+            mBuffer = mPool.acquire(byteRange.length);
+            buffer = mBuffer.data();
+        }
+        buffer.clear();
+        buffer.limit(byteRange.length);
+        buffer.position(offset);
 
-        final int status = getData(redirect, byteRange.start, byteRange.end() - 1, buffer);
+        final long start = SystemClock.elapsedRealtime();
+        mResponseTime = 0;
+        final int status = getData(redirect, byteRange.start + offset, byteRange.end() - 1, buffer);
         b.putInt("status", status);
+        if (mResponseTime > 0) {
+            // timings for the bandwidth estimate
+            b.putLong("latency", mResponseTime - start);
+            b.putLong("duration", SystemClock.elapsedRealtime() - start);
+            b.putInt("bytes", buffer.position() - offset);
+        }
         switch (status) {
             case HttpStatus.SC_OK:
             case HttpStatus.SC_PARTIAL_CONTENT:
-                // already handled in getData()
+                // the connection might have been closed early, retries resume at the first unread chunk
+                final int expected = expectedLength();
+                if (buffer.position() < expected) {
+                    throw new IOException(String.format(Locale.ENGLISH, "short read for %s (%d < %d bytes)",
+                            chunkRange, buffer.position(), expected));
+                }
+                // already handled in getData(), the last chunk of the content might be short
+                if (buffer.position() > mChunksRead * chunkSize) {
+                    publishChunk(buffer.position());
+                }
                 buffer.flip();
 
                 b.putBoolean("success", true);
@@ -69,7 +218,7 @@ abstract class DataTask extends StreamItemTask {
             case HttpStatus.SC_FORBIDDEN:
                 if (Log.isLoggable(LOG_TAG, Log.DEBUG))
                     Log.d(LOG_TAG, "invalidating redirect url");
-                item.invalidateRedirectUrl();
+                item.invalidateRedirectUrl(redirect);
                 item.setHttpError(status);
                 break;
             // permanent failure
@@ -88,6 +237,21 @@ abstract class DataTask extends StreamItemTask {
         return b;
     }
 
+    /**
+     * @return the number of bytes of the range the content actually has. Without a content
+     * length only the last chunk of the range may be short.
+     */
+    private int expectedLength() {
+        final long contentLength = item.getContentLength();
+        if (contentLength <= 0) {
+            return (chunkRange.length - 1) * chunkSize + 1;
+        } else if (byteRange.end() > contentLength) {
+            return (int) Math.max(0, contentLength - byteRange.start);
+        } else {
+            return byteRange.length;
+        }
+    }
+
     @Override
     public String toString() {
         return "DataTask{" +
@@ -97,82 +261,75 @@ abstract class DataTask extends StreamItemTask {
                 '}';
     }
 
-    public static DataTask create(StreamItem item, Range chunkRange, Range range, ApiWrapper wrapper) {
-        // google recommends using HttpURLConnection from Gingerbread on:
-        // http://android-developers.blogspot.com/2011/09/androids-http-clients.html
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
-            return new HttpURLConnectionDataTask(item, chunkRange, range, wrapper);
-        } else {
-            return new HttpClientDataTask(item, chunkRange, range, wrapper);
-        }
+    /**
+     * All data tasks share the pooled transport, so range requests to the same host reuse
+     * their connections. This is why HttpURLConnection isn't used here, even though
+     * google recommends it from Gingerbread on: its connection pool can't be capped per
+     * host or inspected.
+     */
+    public static DataTask create(StreamItem item, Range chunkRange, Range range, ApiWrapper wrapper,
+                                  HttpTransport transport, BufferPool pool) {
+        return new HttpClientDataTask(item, chunkRange, range, wrapper, transport, pool);
     }
 
     static class HttpClientDataTask extends DataTask {
-        public HttpClientDataTask(StreamItem item, Range chunkRange, Range byteRange, ApiWrapper api) {
-            super(item, chunkRange, byteRange, api);
+        private final HttpTransport mTransport;
+        private volatile HttpGet mRequest;
+
+        public HttpClientDataTask(StreamItem item, Range chunkRange, Range byteRange, ApiWrapper api,
+                                  HttpTransport transport, BufferPool pool) {
+            super(item, chunkRange, byteRange, api, pool);
+            mTransport = transport;
         }
 
         @Override
         protected int getData(URL url, int start, int end, ByteBuffer dst) throws IOException {
             HttpGet get = new HttpGet(url.toString());
             get.setHeader("Range", Request.formatRange(start, end));
-            HttpResponse resp = api.safeExecute(null, get);
+            mRequest = get;
+            if (isCancelled()) get.abort();
+            HttpResponse resp = mTransport.execute(get);
+            onResponse();
 
             final int status = resp.getStatusLine().getStatusCode();
-            switch (status) {
-                case HttpStatus.SC_OK:
-                case HttpStatus.SC_PARTIAL_CONTENT:
-                    if (!BufferUtils.readBody(resp, buffer)) {
-                        throw new IOException("error reading buffer");
-                    }
-            }
-            return status;
-        }
-    }
-
-    static class HttpURLConnectionDataTask extends DataTask {
-        static final int READ_TIMEOUT = 10 * 1000;
-        static final int CONNECTION_TIMEOUT = 10 * 1000;
-
-        public HttpURLConnectionDataTask(StreamItem item, Range chunkRange, Range byteRange, ApiWrapper api) {
-            super(item, chunkRange, byteRange, api);
-        }
-
-        @Override
-        protected int getData(URL url, int start, int end, ByteBuffer dst) throws IOException {
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestProperty("Range",
-                    String.format(Locale.ENGLISH, "bytes=%d-%d", start, end));
-
-            connection.setReadTimeout(READ_TIMEOUT);
-            connection.setConnectTimeout(CONNECTION_TIMEOUT);
-            connection.setDoInput(true);
-            connection.setDoOutput(false);
-            connection.setRequestProperty("User-Agent", api.getUserAgent());
-            connection.setUseCaches(false);
-            InputStream is = null;
+            final HttpEntity entity = resp.getEntity();
             try {
-                connection.connect();
-                final int status = connection.getResponseCode();
                 switch (status) {
                     case HttpStatus.SC_OK:
                     case HttpStatus.SC_PARTIAL_CONTENT:
-                        if (dst.remaining() < connection.getContentLength()) {
-                            throw new IOException(String.format(Locale.ENGLISH, "allocated buffer is too small (%d < %d)",
-                                        dst.remaining(), connection.getContentLength()));
+                        final InputStream is = entity == null ? null : entity.getContent();
+                        if (is == null) {
+                            throw new IOException("error reading buffer");
                         }
-                        is = new BufferedInputStream(connection.getInputStream());
-                        final byte[] bytes = new byte[8192];
-                        int n;
-                        while ((n = is.read(bytes)) != -1) {
-                            dst.put(bytes, 0, n);
+                        try {
+                            if (dst.remaining() < entity.getContentLength()) {
+                                throw new IOException(String.format(Locale.ENGLISH, "allocated buffer is too small (%d < %d)",
+                                        dst.remaining(), entity.getContentLength()));
+                            }
+                            read(is, dst);
+                        } finally {
+                            // hands the connection back to the pool once the body has been read
+                            is.close();
                         }
+                        break;
+                    default:
+                        if (entity != null) entity.consumeContent();
                 }
                 return status;
+            } catch (IOException e) {
+                // don't return a connection in an unknown state to the pool
+                get.abort();
+                throw e;
             } finally {
-                if (is != null) is.close();
-                connection.disconnect();
+                mRequest = null;
             }
         }
+
+        @Override
+        public void cancel() {
+            super.cancel();
+            final HttpGet request = mRequest;
+            if (request != null) request.abort();
+        }
     }
 }
@@ -0,0 +1,223 @@
+package com.soundcloud.android.streaming;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs data tasks on a bounded number of worker threads, with at most a few connections
+ * to the same host. Pending tasks are handed out high priority first, the most recently
+ * requested item first as that is usually the one the player is waiting for. The tasks of an
+ * item are handed out in the order they were requested, which puts the chunks nearest to
+ * the playhead first.
+ *
+ * Results are delivered to the result handler, which has to report every task back via
+ * {@link #finished(DataTask)}. Not thread-safe, only to be used from the result thread.
+ */
+class DownloadPool {
+    static final String LOG_TAG = StreamLoader.LOG_TAG;
+
+    private final int mWorkerCount;
+    private final int mMaxPerHost;
+    private final LinkedList<StreamHandler> mIdleWorkers = new LinkedList<StreamHandler>();
+    private final List<Pending> mPending = new ArrayList<Pending>();
+    private final Map<DataTask, Running> mRunning = new HashMap<DataTask, Running>();
+    private final Map<String, Integer> mHostConnections = new HashMap<String, Integer>();
+    private long mSequence;
+
+    private static class Pending {
+        final DataTask task;
+        final int prio;
+        final long sequence;
+        long itemSequence; // sequence of the latest high priority request for the item
+
+        Pending(DataTask task, int prio, long sequence) {
+            this.task = task;
+            this.prio = prio;
+            this.sequence = sequence;
+            this.itemSequence = sequence;
+        }
+    }
+
+    private static class Running {
+        final StreamHandler worker;
+        final String host;
+        final int prio;
+
+        Running(StreamHandler worker, String host, int prio) {
+            this.worker = worker;
+            this.host = host;
+            this.prio = prio;
+        }
+    }
+
+    /**
+     * high priority first, most recently requested item first within high priority,
+     * oldest first otherwise
+     */
+    private static final Comparator<Pending> DISPATCH_ORDER = new Comparator<Pending>() {
+        @Override
+        public int compare(Pending lhs, Pending rhs) {
+            if (lhs.prio != rhs.prio) {
+                return lhs.prio > rhs.prio ? -1 : 1;
+            } else if (lhs.prio == StreamLoader.HI_PRIO && lhs.itemSequence != rhs.itemSequence) {
+                return lhs.itemSequence > rhs.itemSequence ? -1 : 1;
+            } else if (lhs.sequence == rhs.sequence) {
+                return 0;
+            } else {
+                return lhs.sequence < rhs.sequence ? -1 : 1;
+            }
+        }
+    };
+
+    public DownloadPool(Context context, Handler resultHandler, int workers, int maxPerHost,
+                        RetryPolicy retryPolicy, CircuitBreaker circuitBreaker) {
+        mWorkerCount = workers;
+        mMaxPerHost = maxPerHost;
+        for (int i = 0; i < workers; i++) {
+            HandlerThread thread = new HandlerThread("streaming-data-" + i, android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mIdleWorkers.add(new StreamHandler(context, thread.getLooper(), resultHandler, retryPolicy, circuitBreaker));
+        }
+    }
+
+    public void submit(DataTask task, int prio) {
+        final Pending pending = new Pending(task, prio, mSequence++);
+        if (prio == StreamLoader.HI_PRIO) {
+            // earlier requests for the item move up with it, keeping their order
+            for (Pending p : mPending) {
+                if (p.prio == prio && p.task.item.equals(task.item)) p.itemSequence = pending.sequence;
+            }
+        }
+        mPending.add(pending);
+        Collections.sort(mPending, DISPATCH_ORDER);
+        dispatch();
+    }
+
+    /**
+     * Frees the worker and connection slot taken by the task.
+     */
+    public void finished(DataTask task) {
+        final Running running = mRunning.remove(task);
+        if (running != null) {
+            mIdleWorkers.add(running.worker);
+            final int connections = mHostConnections.get(running.host) - 1;
+            if (connections > 0) {
+                mHostConnections.put(running.host, connections);
+            } else {
+                mHostConnections.remove(running.host);
+            }
+            dispatch();
+        }
+    }
+
+    /**
+     * Drops all tasks with the given priority which have not been started yet.
+     * @return the dropped tasks
+     */
+    public List<DataTask> removePending(int prio) {
+        final List<DataTask> removed = new ArrayList<DataTask>();
+        for (Iterator<Pending> it = mPending.iterator(); it.hasNext(); ) {
+            final Pending p = it.next();
+            if (p.prio == prio) {
+                it.remove();
+                removed.add(p.task);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return all pending and running tasks for the item
+     */
+    public List<DataTask> tasksFor(StreamItem item) {
+        final List<DataTask> tasks = new ArrayList<DataTask>();
+        for (Pending p : mPending) {
+            if (p.task.item.equals(item)) tasks.add(p.task);
+        }
+        for (DataTask t : mRunning.keySet()) {
+            if (t.item.equals(item)) tasks.add(t);
+        }
+        return tasks;
+    }
+
+    /**
+     * Cancels a task. Pending tasks are dropped right away, running ones are asked to stop and
+     * get reported to the result handler as usual.
+     *
+     * @return true if the task was pending and has been dropped
+     */
+    public boolean cancel(DataTask task) {
+        for (Iterator<Pending> it = mPending.iterator(); it.hasNext(); ) {
+            if (it.next().task == task) {
+                it.remove();
+                task.cancel();
+                return true;
+            }
+        }
+        if (mRunning.containsKey(task)) task.cancel();
+        return false;
+    }
+
+    public boolean hasPending(int prio) {
+        for (Pending p : mPending) {
+            if (p.prio == prio) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Low priority tasks are only accepted while there is nothing else to do, and never take
+     * the last worker, so a request from the player can always start right away.
+     */
+    public boolean hasCapacity(int prio) {
+        if (prio == StreamLoader.HI_PRIO) {
+            return mPending.size() + mRunning.size() < mWorkerCount;
+        } else {
+            return mPending.isEmpty() && mRunning.size() < mWorkerCount - 1;
+        }
+    }
+
+    public int runningTasks() {
+        return mRunning.size();
+    }
+
+    private void dispatch() {
+        for (Iterator<Pending> it = mPending.iterator(); it.hasNext() && !mIdleWorkers.isEmpty(); ) {
+            final Pending p = it.next();
+            final String host = p.task.host();
+            final Integer connections = mHostConnections.get(host);
+            if (connections != null && connections >= mMaxPerHost) continue;
+
+            it.remove();
+            final StreamHandler worker = mIdleWorkers.removeFirst();
+            mRunning.put(p.task, new Running(worker, host, p.prio));
+            mHostConnections.put(host, connections == null ? 1 : connections + 1);
+
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+                Log.d(LOG_TAG, "dispatching " + p.task + " (" + mRunning.size() + " running)");
+
+            worker.sendMessage(worker.obtainMessage(p.prio, p.task));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadPool{" +
+                "workers=" + mWorkerCount +
+                ", running=" + mRunning.size() +
+                ", pending=" + mPending.size() +
+                ", hosts=" + mHostConnections +
+                '}';
+    }
+}
@@ -0,0 +1,176 @@
+package com.soundcloud.android.streaming;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP client for range requests against the stream hosts, which keeps connections alive and
+ * reuses them for subsequent requests to the same host, so chunks don't pay for connection
+ * (and TLS) setup every time. Connections idle for too long get closed.
+ */
+class HttpTransport {
+    static final String LOG_TAG = StreamLoader.LOG_TAG;
+
+    static final int READ_TIMEOUT = 10 * 1000;
+    static final int CONNECTION_TIMEOUT = 10 * 1000;
+    static final int MAX_CONNECTIONS = 8;
+    static final long MAX_KEEP_ALIVE = 30 * 1000;  // unless the server asks for less
+    static final long IDLE_TIMEOUT = 30 * 1000;
+
+    private final DefaultHttpClient mClient;
+    private final ThreadSafeClientConnManager mConnectionManager;
+    private final ServerClock mServerClock = new ServerClock();
+    private volatile long mLastEviction;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mConnectionsOpened = new AtomicLong();
+    private final AtomicLong mConnectionsReused = new AtomicLong();
+
+    public HttpTransport(String userAgent, int maxConnectionsPerHost) {
+        final HttpParams params = new BasicHttpParams();
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        HttpProtocolParams.setUserAgent(params, userAgent);
+        HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+        HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        // pooled connections might have been closed by the server in the meantime
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerHost));
+        ConnManagerParams.setTimeout(params, CONNECTION_TIMEOUT);
+
+        final SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        mConnectionManager = new ThreadSafeClientConnManager(params, registry) {
+            @Override
+            public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+                return countingRequest(super.requestConnection(route, state));
+            }
+        };
+        mClient = new DefaultHttpClient(mConnectionManager, params);
+        mClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            final ConnectionKeepAliveStrategy mDefault = new DefaultConnectionKeepAliveStrategy();
+
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                final long duration = mDefault.getKeepAliveDuration(response, context);
+                return duration > 0 ? Math.min(duration, MAX_KEEP_ALIVE) : MAX_KEEP_ALIVE;
+            }
+        });
+    }
+
+    /**
+     * Executes the request on a pooled connection. The response entity has to be consumed or
+     * closed, otherwise the connection doesn't go back to the pool.
+     */
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        evictIdleConnections();
+        mRequests.incrementAndGet();
+        final HttpResponse response = mClient.execute(request);
+        mServerClock.update(response);
+        return response;
+    }
+
+    /**
+     * @return the clock of the stream hosts, as seen in their responses
+     */
+    public ServerClock getServerClock() {
+        return mServerClock;
+    }
+
+    /**
+     * Closes connections which have been idle for too long, or whose keep-alive has expired.
+     * Runs at most every couple of seconds, however often it gets called.
+     */
+    public void evictIdleConnections() {
+        final long now = SystemClock.elapsedRealtime();
+        if (now - mLastEviction > IDLE_TIMEOUT / 2) {
+            mLastEviction = now;
+            mConnectionManager.closeExpiredConnections();
+            mConnectionManager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void shutdown() {
+        mConnectionManager.shutdown();
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    public long getConnectionsOpened() {
+        return mConnectionsOpened.get();
+    }
+
+    public long getConnectionsReused() {
+        return mConnectionsReused.get();
+    }
+
+    public int getConnectionsInPool() {
+        return mConnectionManager.getConnectionsInPool();
+    }
+
+    private ClientConnectionRequest countingRequest(final ClientConnectionRequest request) {
+        return new ClientConnectionRequest() {
+            @Override
+            public ManagedClientConnection getConnection(long timeout, TimeUnit tunit)
+                    throws InterruptedException, ConnectionPoolTimeoutException {
+                final ManagedClientConnection connection = request.getConnection(timeout, tunit);
+                // connections handed out by the pool are still open
+                if (connection.isOpen()) {
+                    mConnectionsReused.incrementAndGet();
+                } else {
+                    mConnectionsOpened.incrementAndGet();
+                }
+                if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, HttpTransport.this.toString());
+                return connection;
+            }
+
+            @Override
+            public void abortRequest() {
+                request.abortRequest();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "HttpTransport{" +
+                "requests=" + mRequests +
+                ", opened=" + mConnectionsOpened +
+                ", reused=" + mConnectionsReused +
+                ", pooled=" + getConnectionsInPool() +
+                ", clock=" + mServerClock +
+                '}';
+    }
+}
@@ -0,0 +1,76 @@
+package com.soundcloud.android.streaming;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the chunks which are queued for download or downloading, so every chunk
+ * is only requested once, however often it is asked for. Not thread-safe, only to be used
+ * from the result thread.
+ */
+class InFlightChunks {
+    private final Map<StreamItem, Index> mChunks = new HashMap<StreamItem, Index>();
+    private int mDuplicates;
+
+    public void add(StreamItem item, Range chunkRange) {
+        Index chunks = mChunks.get(item);
+        if (chunks == null) {
+            chunks = new Index();
+            mChunks.put(item, chunks);
+        }
+        chunks.set(chunkRange.start, chunkRange.end());
+    }
+
+    public void remove(StreamItem item, int chunkIndex) {
+        remove(item, Range.from(chunkIndex, 1));
+    }
+
+    public void remove(StreamItem item, Range chunkRange) {
+        final Index chunks = mChunks.get(item);
+        if (chunks != null) {
+            chunks.clear(chunkRange.start, chunkRange.end());
+            if (chunks.isEmpty()) mChunks.remove(item);
+        }
+    }
+
+    public boolean contains(StreamItem item, int chunkIndex) {
+        final Index chunks = mChunks.get(item);
+        return chunks != null && chunks.get(chunkIndex);
+    }
+
+    /**
+     * Removes all chunks which are already on their way from the given index.
+     * @return true if any chunks have been removed
+     */
+    public boolean removeFrom(StreamItem item, Index index) {
+        final Index chunks = mChunks.get(item);
+        if (chunks != null && chunks.intersects(index)) {
+            mDuplicates += countIntersection(chunks, index);
+            index.andNot(chunks);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of chunk requests which were dropped because the chunk was already on its way
+     */
+    public int getDuplicateCount() {
+        return mDuplicates;
+    }
+
+    private static int countIntersection(Index a, Index b) {
+        final Index intersection = (Index) a.clone();
+        intersection.and(b);
+        return intersection.cardinality();
+    }
+
+    @Override
+    public String toString() {
+        return "InFlightChunks{" +
+                "chunks=" + mChunks +
+                ", duplicates=" + mDuplicates +
+                '}';
+    }
+}
@@ -2,28 +2,39 @@ package com.soundcloud.android.streaming;
 
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
+/**
+ * The items with chunks to download, in the order they are served. A linked list indexed by
+ * item, so membership, adding, moving to the front and removal are all constant time.
+ *
+ * Iterating doesn't copy the queue, and the queue can be changed while iterating over it:
+ * removed items are skipped, unless the iterator has already returned them, and items added
+ * in the meantime may or may not be returned.
+ */
 class ItemQueue implements Iterable<StreamItem> {
-    private final List<StreamItem> mItems;
+    private final Map<StreamItem, Node> mNodes = new HashMap<StreamItem, Node>();
+    private Node mHead, mTail;
 
-    public ItemQueue() {
-        this(new ArrayList<StreamItem>());
-    }
+    private static class Node {
+        final StreamItem item;
+        Node prev, next;
+        boolean removed; // removed nodes keep their next node, for iterators still holding them
 
-    public ItemQueue(List<StreamItem> items) {
-        this.mItems = Collections.synchronizedList(items);
+        Node(StreamItem item) {
+            this.item = item;
+        }
     }
 
-    public boolean addItem(StreamItem item, Index chunksToDownload) {
+    public synchronized boolean addItem(StreamItem item, Index chunksToDownload) {
         if (item.isAvailable()) {
             item.missingChunks.or(chunksToDownload);
             if (!item.missingChunks.isEmpty() /* only add to q if there's something to download */
-                && !mItems.contains(item)) {
-                mItems.add(0, item);
+                && !contains(item)) {
+                addFirst(item);
                 return true;
 
             } else return false;
@@ -33,44 +44,137 @@ class ItemQueue implements Iterable<StreamItem> {
         }
     }
 
-    public boolean removeIfCompleted(StreamItem item, Index newChunks) {
-        if (mItems.contains(item)) {
+    public synchronized boolean removeIfCompleted(StreamItem item, Index newChunks) {
+        if (contains(item)) {
             item.missingChunks.andNot(newChunks);
-            return item.missingChunks.isEmpty() && mItems.remove(item);
+            return item.missingChunks.isEmpty() && remove(item);
         } else return false;
     }
 
-    public boolean contains(StreamItem item) {
-        return mItems.contains(item);
+    public synchronized boolean contains(StreamItem item) {
+        return mNodes.containsKey(item);
     }
 
-    public boolean add(StreamItem item) {
-        return !mItems.contains(item) && mItems.add(item);
+    /**
+     * Adds the item at the end of the queue.
+     * @return false if it has already been queued
+     */
+    public synchronized boolean add(StreamItem item) {
+        if (contains(item)) return false;
+
+        final Node node = new Node(item);
+        node.prev = mTail;
+        if (mTail != null) mTail.next = node; else mHead = node;
+        mTail = node;
+        mNodes.put(item, node);
+        return true;
     }
 
-    public boolean remove(StreamItem item) {
-        return mItems.remove(item);
+    /**
+     * Adds the item at the front of the queue.
+     * @return false if it has already been queued
+     */
+    public synchronized boolean addFirst(StreamItem item) {
+        if (contains(item)) return false;
+
+        final Node node = new Node(item);
+        node.next = mHead;
+        if (mHead != null) mHead.prev = node; else mTail = node;
+        mHead = node;
+        mNodes.put(item, node);
+        return true;
     }
 
-    public StreamItem head() {
-        if (!mItems.isEmpty()) {
-            return mItems.get(0);
-        } else {
-            return null;
+    /**
+     * Moves a queued item to the front of the queue.
+     * @return false if the item is not queued
+     */
+    public synchronized boolean moveToFront(StreamItem item) {
+        final Node node = mNodes.get(item);
+        if (node == null) return false;
+        if (node != mHead) {
+            // a new node, so iterators holding the old one don't return to the front
+            remove(item);
+            addFirst(item);
         }
+        return true;
+    }
+
+    public synchronized boolean remove(StreamItem item) {
+        final Node node = mNodes.remove(item);
+        if (node == null) return false;
+
+        if (node.prev != null) node.prev.next = node.next; else mHead = node.next;
+        if (node.next != null) node.next.prev = node.prev; else mTail = node.prev;
+        node.prev = null;
+        node.removed = true;
+        return true;
+    }
+
+    public synchronized StreamItem head() {
+        return mHead != null ? mHead.item : null;
     }
 
-    public boolean isEmpty() {
-        return mItems.isEmpty();
+    public synchronized boolean isEmpty() {
+        return mHead == null;
     }
 
-    public int size() {
-        return mItems.size();
+    public synchronized int size() {
+        return mNodes.size();
     }
 
     @Override
     public Iterator<StreamItem> iterator() {
-        // provide a copy of the data so we can manipulate the queue while iterating over it
-        return new ArrayList<StreamItem>(mItems).iterator();
+        return new Iterator<StreamItem>() {
+            private Node mNext = nextNode(null);
+            private Node mLast;
+
+            @Override
+            public boolean hasNext() {
+                synchronized (ItemQueue.this) {
+                    // the next node might have been removed since
+                    if (mNext != null && mNext.removed) mNext = nextNode(mNext);
+                    return mNext != null;
+                }
+            }
+
+            @Override
+            public StreamItem next() {
+                synchronized (ItemQueue.this) {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    mLast = mNext;
+                    mNext = nextNode(mNext);
+                    return mLast.item;
+                }
+            }
+
+            @Override
+            public void remove() {
+                synchronized (ItemQueue.this) {
+                    if (mLast == null) throw new IllegalStateException();
+                    if (!mLast.removed) ItemQueue.this.remove(mLast.item);
+                    mLast = null;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the first queued node following the given one, or the head if it is null
+     */
+    private synchronized Node nextNode(Node node) {
+        Node next = node == null ? mHead : node.next;
+        while (next != null && next.removed) next = next.next;
+        return next;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("ItemQueue[");
+        for (Node n = mHead; n != null; n = n.next) {
+            sb.append(n.item);
+            if (n.next != null) sb.append(", ");
+        }
+        return sb.append(']').toString();
     }
 }
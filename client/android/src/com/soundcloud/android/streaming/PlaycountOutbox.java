@@ -0,0 +1,193 @@
+package com.soundcloud.android.streaming;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Playcounts which still have to be sent, kept on disk so they survive process death.
+ * Every play is only counted once, however often it gets logged: entries are keyed by
+ * track id and play session. Failed entries are retried with a jittered exponential
+ * backoff. Not thread-safe, only to be used from the playcount thread.
+ */
+class PlaycountOutbox {
+    static final int VERSION = 1;
+    static final long MIN_BACKOFF = 30 * 1000;
+    static final long MAX_BACKOFF = 60 * 60 * 1000;
+    static final int MAX_ATTEMPTS = 12;
+
+    private final File mFile;
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+    private final Random mRandom = new Random();
+    private boolean mDirty;
+
+    static class Entry {
+        final String url;
+        final long trackId;
+        final long session;
+        int attempts;
+        long nextAttempt; // wall clock, survives reboots
+
+        Entry(String url, long trackId, long session) {
+            this.url = url;
+            this.trackId = trackId;
+            this.session = session;
+        }
+
+        String key() {
+            return trackId + ":" + session;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "trackId=" + trackId +
+                    ", session=" + session +
+                    ", attempts=" + attempts +
+                    '}';
+        }
+    }
+
+    public PlaycountOutbox(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return false if the play has been queued already
+     */
+    public boolean add(String url, long trackId, long session) {
+        final Entry e = new Entry(url, trackId, session);
+        if (mEntries.containsKey(e.key())) return false;
+
+        mEntries.put(e.key(), e);
+        mDirty = true;
+        return true;
+    }
+
+    /**
+     * @return up to max entries which are due to be sent, oldest first
+     */
+    public List<Entry> due(long now, int max) {
+        final List<Entry> due = new ArrayList<Entry>();
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext() && due.size() < max; ) {
+            final Entry e = it.next();
+            if (e.nextAttempt <= now) due.add(e);
+        }
+        return due;
+    }
+
+    /**
+     * @return the time the next entry is due, or -1 if the outbox is empty
+     */
+    public long nextDue() {
+        long next = -1;
+        for (Entry e : mEntries.values()) {
+            if (next == -1 || e.nextAttempt < next) next = e.nextAttempt;
+        }
+        return next;
+    }
+
+    public void remove(Entry e) {
+        if (mEntries.remove(e.key()) != null) mDirty = true;
+    }
+
+    /**
+     * Schedules another attempt, or gives up on the entry after too many.
+     * @return true if the entry will be retried
+     */
+    public boolean retry(Entry e, long now) {
+        if (++e.attempts >= MAX_ATTEMPTS) {
+            remove(e);
+            return false;
+        } else {
+            e.nextAttempt = now + backoff(e.attempts);
+            mDirty = true;
+            return true;
+        }
+    }
+
+    /**
+     * @return the exponential backoff for the given attempt, randomized between half and all
+     *         of it, so clients which failed together don't retry together
+     */
+    /* package */ long backoff(int attempts) {
+        final long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(attempts - 1, 16));
+        return backoff / 2 + (long) (mRandom.nextDouble() * (backoff / 2));
+    }
+
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public void load() throws IOException {
+        if (!mFile.exists()) return;
+
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            final int version = dis.readInt();
+            if (version != VERSION) throw new IOException("unknown outbox version " + version);
+
+            final int count = dis.readInt();
+            if (count < 0) throw new IOException("invalid entry count " + count);
+            for (int i = 0; i < count; i++) {
+                final Entry e = new Entry(dis.readUTF(), dis.readLong(), dis.readLong());
+                e.attempts = dis.readInt();
+                e.nextAttempt = dis.readLong();
+                if (!mEntries.containsKey(e.key())) mEntries.put(e.key(), e);
+            }
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Writes the outbox to disk if it has changed since it was last stored.
+     */
+    public void store() throws IOException {
+        if (!mDirty) return;
+
+        final File tmp = new File(mFile.getParentFile(), mFile.getName() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            dos.writeInt(VERSION);
+            dos.writeInt(mEntries.size());
+            for (Entry e : mEntries.values()) {
+                dos.writeUTF(e.url);
+                dos.writeLong(e.trackId);
+                dos.writeLong(e.session);
+                dos.writeInt(e.attempts);
+                dos.writeLong(e.nextAttempt);
+            }
+        } finally {
+            dos.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("could not rename " + tmp + " to " + mFile);
+        }
+        mDirty = false;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaycountOutbox{" +
+                "entries=" + mEntries.size() +
+                ", file=" + mFile +
+                '}';
+    }
+}
@@ -0,0 +1,100 @@
+package com.soundcloud.android.streaming;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A view of a buffer handed out by a {@link BufferPool}. Every view holds a reference to the
+ * buffer, which goes back to the pool once all views have been released, so whoever keeps a
+ * view has to hold their own. Views which are never released are simply garbage collected,
+ * it's releasing too early that must not happen, the buffer might get reused while it is
+ * still being read.
+ */
+final class PooledBuffer {
+    private final ByteBuffer mData;
+    private final Backing mBacking; // null if the data doesn't belong to a pool
+    private final AtomicBoolean mReleased = new AtomicBoolean();
+
+    private static final class Backing {
+        final ByteBuffer buffer;
+        final BufferPool pool;
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Backing(ByteBuffer buffer, BufferPool pool) {
+            this.buffer = buffer;
+            this.pool = pool;
+        }
+    }
+
+    /* package */ PooledBuffer(ByteBuffer buffer, BufferPool pool) {
+        this(buffer, new Backing(buffer, pool));
+    }
+
+    private PooledBuffer(ByteBuffer data, Backing backing) {
+        mData = data;
+        mBacking = backing;
+    }
+
+    /**
+     * @return a view of data which doesn't belong to a pool, releasing it does nothing
+     */
+    public static PooledBuffer wrap(ByteBuffer data) {
+        return new PooledBuffer(data, (Backing) null);
+    }
+
+    /**
+     * @return the bytes of this view. Position and limit of the returned buffer can be changed
+     *         freely, the bytes only as long as nobody else is reading them.
+     */
+    public ByteBuffer data() {
+        return mData.duplicate();
+    }
+
+    public int remaining() {
+        return mData.remaining();
+    }
+
+    /**
+     * @param data a part of this buffer, obtained from {@link #data()}
+     * @return a new view of the given part, with its own reference
+     */
+    public PooledBuffer view(ByteBuffer data) {
+        if (mReleased.get()) throw new IllegalStateException("view has been released");
+        if (mBacking != null && mBacking.refs.getAndIncrement() <= 0) {
+            throw new IllegalStateException("buffer has been returned to the pool");
+        }
+        return new PooledBuffer(data, mBacking);
+    }
+
+    /**
+     * @return a new view of the same bytes, with its own reference
+     */
+    public PooledBuffer retain() {
+        return view(mData.duplicate());
+    }
+
+    /**
+     * Drops the reference of this view, the buffer is returned to the pool once all views
+     * are released. Only the first call has any effect.
+     */
+    public void release() {
+        if (mBacking != null && mReleased.compareAndSet(false, true) &&
+            mBacking.refs.decrementAndGet() == 0) {
+            mBacking.pool.recycle(mBacking.buffer);
+        }
+    }
+
+    public boolean isPooled() {
+        return mBacking != null;
+    }
+
+    @Override
+    public String toString() {
+        return "PooledBuffer{" +
+                "data=" + mData +
+                ", refs=" + (mBacking == null ? "-" : String.valueOf(mBacking.refs.get())) +
+                ", released=" + mReleased.get() +
+                '}';
+    }
+}
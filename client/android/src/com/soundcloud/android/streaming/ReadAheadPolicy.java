@@ -0,0 +1,68 @@
+package com.soundcloud.android.streaming;
+
+/**
+ * Decides how much audio to buffer ahead of the playhead. Slow or high latency connections
+ * get a bigger window to ride out stalls, fast connections a smaller one, as they can
+ * catch up quickly and downloading far ahead wastes data if the user skips.
+ */
+class ReadAheadPolicy {
+    static final int DEFAULT_BITRATE = 128;        // kbit/s, if the stream doesn't tell
+    static final double DEFAULT_SECONDS = 20;      // until there's an estimate
+    static final double MIN_SECONDS = 10;
+    static final double MAX_SECONDS = 60;
+    static final double FAST_RATIO = 4;            // downloading this much faster than playback is fast
+    static final long DEFAULT_PRELOAD_DELAY = 10 * 1000;
+    static final long MAX_PRELOAD_DELAY = 30 * 1000;
+
+    private final BandwidthEstimator mEstimator;
+    private final int mChunkSize;
+
+    public ReadAheadPolicy(BandwidthEstimator estimator, int chunkSize) {
+        mEstimator = estimator;
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * @return the number of seconds of audio which should be buffered ahead of the playhead
+     */
+    public double targetSeconds(StreamItem item) {
+        if (!mEstimator.hasEstimate()) return DEFAULT_SECONDS;
+
+        final double ratio = mEstimator.getThroughput() / bytesPerSecond(item);
+        // at FAST_RATIO and above the minimum is enough, below it grows with the shortfall
+        final double seconds = MIN_SECONDS * FAST_RATIO / Math.max(ratio, 0.1)
+                + mEstimator.getLatency() / 1000d;
+        return Math.max(MIN_SECONDS, Math.min(MAX_SECONDS, seconds));
+    }
+
+    /**
+     * @return the number of chunks to keep downloaded ahead of the playhead
+     */
+    public int windowChunks(StreamItem item) {
+        return Math.max(1, (int) Math.ceil(targetSeconds(item) * bytesPerSecond(item) / mChunkSize));
+    }
+
+    /**
+     * @return how long to wait before preloading the next item. Fast connections can afford to
+     *         wait, slow ones should start early.
+     */
+    public long preloadDelay(StreamItem current) {
+        if (!mEstimator.hasEstimate()) return DEFAULT_PRELOAD_DELAY;
+
+        final double ratio = mEstimator.getThroughput() / bytesPerSecond(current);
+        return Math.min(MAX_PRELOAD_DELAY, (long) (DEFAULT_PRELOAD_DELAY * ratio / FAST_RATIO));
+    }
+
+    private static double bytesPerSecond(StreamItem item) {
+        final int bitrate = item != null && item.getBitrate() > 0 ? item.getBitrate() : DEFAULT_BITRATE;
+        return bitrate * 1000d / 8;
+    }
+
+    @Override
+    public String toString() {
+        return "ReadAheadPolicy{" +
+                "estimator=" + mEstimator +
+                ", chunkSize=" + mChunkSize +
+                '}';
+    }
+}
@@ -0,0 +1,168 @@
+package com.soundcloud.android.streaming;
+
+import com.soundcloud.android.utils.ScTextUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * MD5 (RFC 1321) whose intermediate state can be saved and restored, so a download can be
+ * hashed incrementally across process restarts. {@link java.security.MessageDigest} offers no
+ * way to persist its state.
+ */
+class ResumableMd5 {
+    private static final int BLOCK_SIZE = 64;
+
+    private static final int[] SHIFTS = {
+        7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22,
+        5,  9, 14, 20, 5,  9, 14, 20, 5,  9, 14, 20, 5,  9, 14, 20,
+        4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23,
+        6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21
+    };
+
+    private static final int[] K = {
+        0xd76aa478, 0xe8c7b756, 0x242070db, 0xc1bdceee, 0xf57c0faf, 0x4787c62a, 0xa8304613, 0xfd469501,
+        0x698098d8, 0x8b44f7af, 0xffff5bb1, 0x895cd7be, 0x6b901122, 0xfd987193, 0xa679438e, 0x49b40821,
+        0xf61e2562, 0xc040b340, 0x265e5a51, 0xe9b6c7aa, 0xd62f105d, 0x02441453, 0xd8a1e681, 0xe7d3fbc8,
+        0x21e1cde6, 0xc33707d6, 0xf4d50d87, 0x455a14ed, 0xa9e3e905, 0xfcefa3f8, 0x676f02d9, 0x8d2a4c8a,
+        0xfffa3942, 0x8771f681, 0x6d9d6122, 0xfde5380c, 0xa4beea44, 0x4bdecfa9, 0xf6bb4b60, 0xbebfbc70,
+        0x289b7ec6, 0xeaa127fa, 0xd4ef3085, 0x04881d05, 0xd9d4d039, 0xe6db99e5, 0x1fa27cf8, 0xc4ac5665,
+        0xf4292244, 0x432aff97, 0xab9423a7, 0xfc93a039, 0x655b59c3, 0x8f0ccc92, 0xffeff47d, 0x85845dd1,
+        0x6fa87e4f, 0xfe2ce6e0, 0xa3014314, 0x4e0811a1, 0xf7537e82, 0xbd3af235, 0x2ad7d2bb, 0xeb86d391
+    };
+
+    private final int[] mState = { 0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476 };
+    private final byte[] mBuffer = new byte[BLOCK_SIZE];
+    private final int[] mBlock = new int[16];
+    private int mBuffered;
+    private long mLength;
+
+    public void update(ByteBuffer data) {
+        final ByteBuffer src = data.duplicate();
+        final byte[] tmp = new byte[Math.min(src.remaining(), 8192)];
+        while (src.hasRemaining()) {
+            final int n = Math.min(src.remaining(), tmp.length);
+            src.get(tmp, 0, n);
+            update(tmp, 0, n);
+        }
+    }
+
+    public void update(byte[] input, int offset, int length) {
+        mLength += length;
+        if (mBuffered > 0) {
+            final int n = Math.min(BLOCK_SIZE - mBuffered, length);
+            System.arraycopy(input, offset, mBuffer, mBuffered, n);
+            mBuffered += n;
+            offset += n;
+            length -= n;
+            if (mBuffered < BLOCK_SIZE) return;
+            transform(mState, mBlock, mBuffer, 0);
+            mBuffered = 0;
+        }
+        while (length >= BLOCK_SIZE) {
+            transform(mState, mBlock, input, offset);
+            offset += BLOCK_SIZE;
+            length -= BLOCK_SIZE;
+        }
+        System.arraycopy(input, offset, mBuffer, 0, length);
+        mBuffered = length;
+    }
+
+    /**
+     * @return the number of bytes hashed so far
+     */
+    public long length() {
+        return mLength;
+    }
+
+    /**
+     * Computes the digest of the data hashed so far. The state is left untouched, so more data
+     * can be added afterwards.
+     */
+    public byte[] digest() {
+        final int[] state = mState.clone();
+        final int[] block = new int[16];
+
+        final int padLength = (mBuffered < 56 ? 56 : 120) - mBuffered;
+        final byte[] tail = new byte[mBuffered + padLength + 8];
+        System.arraycopy(mBuffer, 0, tail, 0, mBuffered);
+        tail[mBuffered] = (byte) 0x80;
+        final long bits = mLength << 3;
+        for (int i = 0; i < 8; i++) {
+            tail[tail.length - 8 + i] = (byte) (bits >>> (8 * i));
+        }
+        for (int offset = 0; offset < tail.length; offset += BLOCK_SIZE) {
+            transform(state, block, tail, offset);
+        }
+
+        final byte[] digest = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            digest[i] = (byte) (state[i / 4] >>> (8 * (i % 4)));
+        }
+        return digest;
+    }
+
+    public String hexDigest() {
+        return ScTextUtils.hexString(digest());
+    }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeLong(mLength);
+        for (int word : mState) {
+            dos.writeInt(word);
+        }
+        dos.writeByte(mBuffered);
+        dos.write(mBuffer, 0, mBuffered);
+    }
+
+    public static ResumableMd5 read(DataInputStream dis) throws IOException {
+        ResumableMd5 md5 = new ResumableMd5();
+        md5.mLength = dis.readLong();
+        for (int i = 0; i < md5.mState.length; i++) {
+            md5.mState[i] = dis.readInt();
+        }
+        md5.mBuffered = dis.readUnsignedByte();
+        if (md5.mBuffered >= BLOCK_SIZE) throw new IOException("invalid md5 state");
+        dis.readFully(md5.mBuffer, 0, md5.mBuffered);
+        return md5;
+    }
+
+    private static void transform(int[] state, int[] block, byte[] input, int offset) {
+        for (int i = 0; i < 16; i++) {
+            final int j = offset + i * 4;
+            block[i] = (input[j] & 0xff)
+                    | (input[j + 1] & 0xff) << 8
+                    | (input[j + 2] & 0xff) << 16
+                    | (input[j + 3] & 0xff) << 24;
+        }
+
+        int a = state[0], b = state[1], c = state[2], d = state[3];
+        for (int i = 0; i < 64; i++) {
+            final int f, g;
+            if (i < 16) {
+                f = (b & c) | (~b & d);
+                g = i;
+            } else if (i < 32) {
+                f = (d & b) | (~d & c);
+                g = (5 * i + 1) & 15;
+            } else if (i < 48) {
+                f = b ^ c ^ d;
+                g = (3 * i + 5) & 15;
+            } else {
+                f = c ^ (b | ~d);
+                g = (7 * i) & 15;
+            }
+            final int tmp = d;
+            d = c;
+            c = b;
+            b = b + Integer.rotateLeft(a + f + K[i] + block[g], SHIFTS[i]);
+            a = tmp;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+    }
+}
@@ -0,0 +1,48 @@
+package com.soundcloud.android.streaming;
+
+import java.util.Random;
+
+/**
+ * Decides how long a failed task waits before it is tried again. The delay grows
+ * exponentially with every attempt and is randomized, so tasks which failed together
+ * don't all hit the server again at the same moment.
+ */
+class RetryPolicy {
+    static final long BASE_DELAY = 1000;
+    static final long MAX_DELAY = 30 * 1000;
+
+    private final int mMaxRetries;
+    private final Random mRandom = new Random();
+
+    public RetryPolicy(int maxRetries) {
+        mMaxRetries = maxRetries;
+    }
+
+    public boolean shouldRetry(int numTry) {
+        return numTry < mMaxRetries;
+    }
+
+    /**
+     * @param numTry the number of attempts so far, starting at 0
+     * @return the delay before the next attempt, between half and all of the exponential backoff
+     */
+    public long backoff(int numTry) {
+        final long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(numTry, 16));
+        final double jitter;
+        synchronized (mRandom) {
+            jitter = mRandom.nextDouble();
+        }
+        return delay / 2 + (long) (jitter * (delay / 2));
+    }
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" +
+                "maxRetries=" + mMaxRetries +
+                '}';
+    }
+}
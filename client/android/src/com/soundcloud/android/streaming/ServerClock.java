@@ -0,0 +1,61 @@
+package com.soundcloud.android.streaming;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * Estimates the time of the stream servers from the Date headers of their responses, so
+ * expiry times of redirect links can be checked even if the clock of the device is off.
+ */
+class ServerClock {
+    private volatile long mOffset;
+    private volatile boolean mHasOffset;
+
+    public void update(HttpResponse response) {
+        final Header date = response.getFirstHeader("Date");
+        if (date != null) {
+            try {
+                update(DateUtils.parseDate(date.getValue()).getTime(), System.currentTimeMillis());
+            } catch (DateParseException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @param serverTime the time reported by the server, with a resolution of a second
+     * @param localTime  the local time the response was received
+     */
+    public void update(long serverTime, long localTime) {
+        // the header is truncated to the second, assume the middle of it
+        mOffset = serverTime + 500 - localTime;
+        mHasOffset = true;
+    }
+
+    /**
+     * @return true once the clock has seen a server response
+     */
+    public boolean hasOffset() {
+        return mHasOffset;
+    }
+
+    public long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * @return the current server time, or the local time if no server time has been seen yet
+     */
+    public long now() {
+        return System.currentTimeMillis() + mOffset;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerClock{" +
+                "offset=" + mOffset +
+                ", hasOffset=" + mHasOffset +
+                '}';
+    }
+}
@@ -1,39 +1,299 @@
 package com.soundcloud.android.streaming;
 
+import android.os.Handler;
+
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+/**
+ * The data of a range of a stream item, which is either waited for with one of the blocking
+ * get methods, or handed to {@link Listener}s once it is available.
+ */
 public class StreamFuture implements Future<ByteBuffer> {
     final StreamItem item;
     final Range byteRange;
-    private ByteBuffer byteBuffer;
+    private PooledBuffer byteBuffer;
+    private PooledBuffer partialBuffer;  // the bytes of the range received so far
+    // views handed out before, the consumer might still be reading them until the future is released
+    private List<PooledBuffer> superseded;
 
     private volatile boolean ready;
     private volatile boolean canceled;
+    private volatile boolean timedOut;
+    private boolean released;
+    private List<Listener> listeners;    // null once they have been notified
+
+    /**
+     * Gets notified once the future is done or has been canceled, whatever happens first. Called
+     * on the thread completing the future, unless registered with a handler, so it should return
+     * quickly.
+     */
+    public interface Listener {
+        void onComplete(StreamFuture future);
+    }
+
+    /**
+     * A listener which gets the data directly, or the reason why there is none.
+     */
+    public static abstract class Callback implements Listener {
+        @Override
+        public final void onComplete(StreamFuture future) {
+            try {
+                onData(future, future.get(0));
+            } catch (Exception e) {
+                onFailure(future, e);
+            }
+        }
+
+        /**
+         * @param data the data of the range, valid until the future is released
+         */
+        public abstract void onData(StreamFuture future, ByteBuffer data);
+
+        /**
+         * @param e an {@link ExecutionException}, caused by a {@link TimeoutException} if the
+         *          future timed out
+         */
+        public abstract void onFailure(StreamFuture future, Exception e);
+    }
+
+    /**
+     * Turns the data of a future into the result of a {@link #transform(Transformation) derived}
+     * future, called on the thread completing the future.
+     */
+    public interface Transformation<T> {
+        /**
+         * @param data the data of the range, valid until the future is released
+         * @throws Exception fails the derived future with an {@link ExecutionException}
+         */
+        T apply(StreamFuture future, ByteBuffer data) throws Exception;
+    }
 
     public StreamFuture(StreamItem item, Range byteRange) {
         this.item = item;
         this.byteRange = byteRange;
     }
 
-    public synchronized void setByteBuffer(ByteBuffer byteBuffer) {
-        this.byteBuffer = byteBuffer;
-        ready = true;
-        notifyAll();
+    public void setByteBuffer(ByteBuffer byteBuffer) {
+        setData(PooledBuffer.wrap(byteBuffer));
+    }
+
+    /**
+     * Completes the future with the given data, which is released along with the future.
+     */
+    public void setData(PooledBuffer data) {
+        synchronized (this) {
+            if (released) {
+                data.release();
+                return;
+            }
+            if (byteBuffer != null) supersede(byteBuffer);
+            byteBuffer = data;
+            supersedePartial();
+            ready = true;
+            notifyAll();
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Drops the data of the future, to be called by the consumer once it is done with it.
+     * Futures which are not done yet are canceled.
+     */
+    public void release() {
+        synchronized (this) {
+            if (!ready) canceled = true;
+            released = true;
+            if (byteBuffer != null) {
+                byteBuffer.release();
+                byteBuffer = null;
+            }
+            supersedePartial();
+            if (superseded != null) {
+                for (PooledBuffer b : superseded) b.release();
+                superseded = null;
+            }
+            notifyAll();
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Adds a listener, which is notified right away if the future is already done or canceled.
+     *
+     * @return this future, for chaining
+     */
+    public StreamFuture addListener(Listener listener) {
+        synchronized (this) {
+            if (listeners == null && !isFinished()) listeners = new ArrayList<Listener>();
+            if (listeners != null) {
+                listeners.add(listener);
+                return this;
+            }
+        }
+        listener.onComplete(this);
+        return this;
+    }
+
+    /**
+     * Adds a listener which is notified on the thread of the given handler.
+     *
+     * @return this future, for chaining
+     */
+    public StreamFuture addListener(final Listener listener, final Handler handler) {
+        return addListener(new Listener() {
+            @Override
+            public void onComplete(final StreamFuture future) {
+                handler.post(new Runnable() {
+                    @Override public void run() {
+                        listener.onComplete(future);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Cancels the future unless it is done within the given time. The get methods and
+     * {@link Callback}s then report an {@link ExecutionException} caused by a
+     * {@link TimeoutException}.
+     *
+     * @param handler the handler to schedule the timeout with
+     * @return this future, for chaining
+     */
+    public StreamFuture setTimeout(long timeout, TimeUnit timeUnit, final Handler handler) {
+        final Runnable expire = new Runnable() {
+            @Override public void run() {
+                cancel(false, true);
+            }
+        };
+        handler.postDelayed(expire, timeUnit.toMillis(timeout));
+        return addListener(new Listener() {
+            @Override public void onComplete(StreamFuture future) {
+                handler.removeCallbacks(expire);
+            }
+        });
+    }
+
+    /**
+     * @return a future for the transformed data of this one. It fails with the same
+     *         {@link ExecutionException} if this future is canceled or times out, canceling it
+     *         cancels this future.
+     */
+    public <T> Future<T> transform(Transformation<T> transformation) {
+        final Derived<T> derived = new Derived<T>(this, transformation);
+        addListener(derived);
+        return derived;
+    }
+
+    private synchronized boolean isFinished() {
+        return ready || canceled;
+    }
+
+    private void notifyListeners() {
+        final List<Listener> notify;
+        synchronized (this) {
+            if (listeners == null || !isFinished()) return;
+            notify = listeners;
+            listeners = null;
+        }
+        for (Listener l : notify) {
+            l.onComplete(this);
+        }
+    }
+
+    private void supersedePartial() {
+        if (partialBuffer != null) {
+            supersede(partialBuffer);
+            partialBuffer = null;
+        }
+    }
+
+    /**
+     * Keeps a view which is no longer needed by the future itself until the future is released,
+     * the bytes returned from it might still be in use.
+     */
+    private void supersede(PooledBuffer buffer) {
+        if (superseded == null) superseded = new ArrayList<PooledBuffer>(4);
+        superseded.add(buffer);
+    }
+
+    /**
+     * Publishes the bytes of a chunk received so far, while it is still downloading. Only the
+     * part within the range of this future is used, ignored once the future is done.
+     *
+     * @param chunkIndex the chunk the data belongs to
+     * @param chunkSize  the chunk size
+     * @param received   the received bytes, starting with the first byte of the chunk, retained if used
+     */
+    public synchronized void setPartialData(int chunkIndex, int chunkSize, PooledBuffer received) {
+        if (ready || canceled) return;
+
+        final long chunkStart = (long) chunkIndex * chunkSize;
+        if (byteRange.start < chunkStart || byteRange.start >= chunkStart + chunkSize) return;
+
+        final int skip = (int) (byteRange.start - chunkStart);
+        if (received.remaining() <= skip) return;
+
+        final ByteBuffer partial = received.data();
+        partial.position(partial.position() + skip);
+        partial.limit(Math.min(partial.limit(), partial.position() + byteRange.length));
+        if (partialBuffer == null || partial.remaining() > partialBuffer.remaining()) {
+            supersedePartial();
+            partialBuffer = received.view(partial.slice().asReadOnlyBuffer());
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for more data than the given number of bytes, without waiting for the whole range.
+     *
+     * @param received the number of bytes of the range already consumed
+     * @return the bytes following the first received bytes, empty once the future is done and
+     *         everything has been consumed. Valid until the future is released.
+     */
+    public ByteBuffer getAvailable(int received, long timeout, TimeUnit timeUnit)
+            throws InterruptedException, TimeoutException, ExecutionException {
+        synchronized (this) {
+            final long deadline = System.currentTimeMillis() + timeUnit.toMillis(timeout);
+            while (!canceled && !ready && available() <= received) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) throw new TimeoutException();
+                wait(remaining);
+            }
+            if (timedOut) throw timedOutException();
+            else if (canceled || released) throw new ExecutionException("canceled: "+item, null);
+
+            final ByteBuffer available = (ready ? byteBuffer : partialBuffer).data();
+            available.position(Math.min(available.limit(), available.position() + received));
+            return available.slice();
+        }
+    }
+
+    private int available() {
+        return partialBuffer == null ? 0 : partialBuffer.remaining();
     }
 
     @Override
-    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
-        if (ready) {
-            return false;
-        } else {
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return cancel(mayInterruptIfRunning, false);
+    }
+
+    private boolean cancel(boolean mayInterruptIfRunning, boolean timeout) {
+        synchronized (this) {
+            if (ready || (timeout && canceled)) return false;
+            timedOut = timeout;
             canceled = true;
+            supersedePartial();
             notifyAll();
-            return true;
         }
+        notifyListeners();
+        return true;
     }
 
     @Override
@@ -41,6 +301,13 @@ public class StreamFuture implements Future<ByteBuffer> {
         return canceled;
     }
 
+    /**
+     * @return true if the future has been canceled by its timeout
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
     @Override
     public boolean isDone() {
         return ready;
@@ -51,10 +318,15 @@ public class StreamFuture implements Future<ByteBuffer> {
         try {
             return get(-1);
         } catch (TimeoutException e) {
-            throw new InterruptedException(e.getMessage());
+            // only thrown when waiting for a limited time
+            throw new IllegalStateException(e);
         }
     }
 
+    private ExecutionException timedOutException() {
+        return new ExecutionException("timed out: "+item, new TimeoutException());
+    }
+
     @Override
     public ByteBuffer get(long l, TimeUnit timeUnit) throws InterruptedException, TimeoutException, ExecutionException {
         return get(timeUnit.toMillis(l));
@@ -62,16 +334,97 @@ public class StreamFuture implements Future<ByteBuffer> {
 
     private ByteBuffer get(long millis) throws InterruptedException, TimeoutException, ExecutionException {
         synchronized (this) {
-            if (!isCancelled() && !isDone()) {
+            final long deadline = System.currentTimeMillis() + millis;
+            // wait() may return without being notified, check again
+            while (!canceled && !ready) {
+                if (millis < 0) {
+                    wait();
+                } else {
+                    final long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) throw new TimeoutException();
+                    wait(remaining);
+                }
+            }
+            if (timedOut) throw timedOutException();
+            else if (canceled || released) throw new ExecutionException("canceled: "+item, null);
+            else return byteBuffer.data();
+        }
+    }
+
+    private static class Derived<T> implements Future<T>, Listener {
+        private final StreamFuture mSource;
+        private final Transformation<T> mTransformation;
+        private boolean mDone;
+        private T mResult;
+        private ExecutionException mFailure;
+
+        Derived(StreamFuture source, Transformation<T> transformation) {
+            mSource = source;
+            mTransformation = transformation;
+        }
+
+        @Override
+        public void onComplete(StreamFuture future) {
+            T result = null;
+            ExecutionException failure = null;
+            try {
+                result = mTransformation.apply(future, future.get(0));
+            } catch (ExecutionException e) {
+                failure = e;
+            } catch (Exception e) {
+                failure = new ExecutionException(e);
+            }
+            synchronized (this) {
+                mResult = result;
+                mFailure = failure;
+                mDone = true;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return mSource.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mSource.isCancelled();
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return mDone && mFailure == null;
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            try {
+                return get(-1);
+            } catch (TimeoutException e) {
+                // only thrown when waiting for a limited time
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public T get(long l, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+            return get(timeUnit.toMillis(l));
+        }
+
+        private synchronized T get(long millis) throws InterruptedException, ExecutionException, TimeoutException {
+            final long deadline = System.currentTimeMillis() + millis;
+            while (!mDone) {
                 if (millis < 0) {
                     wait();
                 } else {
-                    wait(millis);
+                    final long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) throw new TimeoutException();
+                    wait(remaining);
                 }
             }
-            if (canceled) throw new ExecutionException("canceled: "+item, null);
-            else if (!ready) throw new TimeoutException();
-            else return byteBuffer;
+            if (mFailure != null) throw mFailure;
+            else return mResult;
         }
     }
 }
@@ -14,13 +14,16 @@ import java.io.IOException;
 // request pipeline
 class StreamHandler extends Handler {
     final private Handler mHandler;
-    final private int mMaxRetries;
+    final private RetryPolicy mRetryPolicy;
+    final private CircuitBreaker mCircuitBreaker;
     private  WifiManager.WifiLock mWifiLock;
 
-    public StreamHandler(Context context, Looper looper, Handler handler, int maxRetries) {
+    public StreamHandler(Context context, Looper looper, Handler handler,
+                         RetryPolicy retryPolicy, CircuitBreaker circuitBreaker) {
         super(looper);
         mHandler = handler;
-        mMaxRetries = maxRetries;
+        mRetryPolicy = retryPolicy;
+        mCircuitBreaker = circuitBreaker;
         mWifiLock = IOUtils.createHiPerfWifiLock(context, getClass().getSimpleName());
     }
 
@@ -30,12 +33,25 @@ class StreamHandler extends Handler {
             Log.d(StreamLoader.LOG_TAG, "StreamHandler: handle " + msg.obj);
 
         StreamItemTask task = (StreamItemTask) msg.obj;
+        if (task.isCancelled()) {
+            mHandler.sendMessage(obtainMessage(msg.what, msg.obj));
+            return;
+        }
+        final String host = task.host();
+        if (!mCircuitBreaker.allowRequest(host)) {
+            // host keeps failing, hand the task back, the loader holds on to it until the host can be tried again
+            if (Log.isLoggable(StreamLoader.LOG_TAG, Log.DEBUG))
+                Log.d(StreamLoader.LOG_TAG, "circuit open for " + host + ", not running " + task);
+            mHandler.sendMessage(obtainMessage(msg.what, msg.obj));
+            return;
+        }
         try {
             final Message result = obtainMessage(msg.what, msg.obj);
 
             if (mWifiLock != null) mWifiLock.acquire();
             final long start = System.currentTimeMillis();
             result.setData(task.execute());
+            mCircuitBreaker.onSuccess(host);
             if (Log.isLoggable(StreamLoader.LOG_TAG, Log.DEBUG))
                 Log.d(StreamLoader.LOG_TAG, "took "+(System.currentTimeMillis()-start)+ " ms");
 
@@ -43,14 +59,21 @@ class StreamHandler extends Handler {
         } catch (IOException e) {
             Log.w(StreamLoader.LOG_TAG, e);
             final int numTry = msg.arg1;
-            if (task.item.isAvailable() && numTry < mMaxRetries) {
+            if (task.isCancelled()) {
+                // aborted by us, says nothing about the host
+                mCircuitBreaker.onAbandoned(host);
+                if (Log.isLoggable(StreamLoader.LOG_TAG, Log.DEBUG))
+                    Log.d(StreamLoader.LOG_TAG, "task canceled, not retrying");
+                mHandler.sendMessage(obtainMessage(msg.what, msg.obj));
+            } else if (mCircuitBreaker.onFailure(host) == CircuitBreaker.State.CLOSED &&
+                       task.item.isAvailable() && mRetryPolicy.shouldRetry(numTry)) {
+                final long backoff = mRetryPolicy.backoff(numTry);
                 if (Log.isLoggable(StreamLoader.LOG_TAG, Log.DEBUG))
-                    Log.d(StreamLoader.LOG_TAG, "retrying, tries=" + numTry);
+                    Log.d(StreamLoader.LOG_TAG, "retrying in " + backoff + "ms, tries=" + numTry);
 
-                final long backoff = numTry*numTry*1000;
                 sendMessageDelayed(obtainMessage(msg.what, numTry+1, 0, msg.obj), backoff);
             } else {
-                Log.w(StreamLoader.LOG_TAG, "giving up (max tries="+mMaxRetries+")");
+                Log.w(StreamLoader.LOG_TAG, "giving up (tries="+numTry+", "+mCircuitBreaker.getState(host)+")");
 
                 // assume we are not connected, return item to queue and wait
                 // to have the connection again
@@ -8,29 +8,28 @@ import com.soundcloud.api.Stream;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.ByteBuffer;
 import java.util.Date;
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class StreamItem implements Parcelable {
     public final Index missingChunks = new Index();
-    public final List<Integer> downloadedChunks =
-            Collections.synchronizedList(new ArrayList<Integer>());
+    public final ChunkMap downloadedChunks = new ChunkMap();
 
     private final URL url;
     public final String urlHash;
@@ -42,10 +41,29 @@ public class StreamItem implements Parcelable {
     private URL mRedirectedUrl;
     private String mEtag;  // audio content ETag
     private long mExpires; // expiration time of the redirect link
+    private boolean mExpiresFromLink; // mExpires is taken from the link, not a default
+    private long mResolvedAt; // elapsed realtime when the redirect link was resolved
     private int mBitrate;
+    private boolean mPositionalChunks; // chunks are stored at chunkIndex * chunkSize
 
     private File mCachedFile;
 
+    // index file journal records, appended after the checkpoint
+    static final int RECORD_CHUNK = 1;
+    static final int RECORD_DIGEST = 2;
+    static final int RECORD_CHUNK_CRC = 3;
+
+    static final int CHECKSUM_VERSION = 1;
+
+    private boolean mIndexCheckpointed;  // full index has been written to / read from disk
+    private int mJournalRecords;         // records appended since the last checkpoint
+
+    // md5 of the contiguous chunks downloaded so far, starting from chunk 0
+    private ResumableMd5 mDigest = new ResumableMd5();
+    private int mDigestedChunks;
+    private boolean mDigestDirty;        // digest changed since it was last written to the index
+
+    private static final Pattern EXPIRES_PATTERN = Pattern.compile("[?&]Expires=(\\d+)");
     private static final Pattern STREAM_PATTERN = Pattern.compile("/(\\d+)/stream(\\?secret_token=s-\\w+)?$");
 
     public StreamItem(String url) {
@@ -81,6 +99,9 @@ public class StreamItem implements Parcelable {
         mContentLength = s.contentLength;
         mEtag = s.eTag;
         mExpires = s.expires;
+        // without an Expires parameter the expiration is just a guess based on the local clock
+        mExpiresFromLink = EXPIRES_PATTERN.matcher(s.streamUrl).find();
+        mResolvedAt = SystemClock.elapsedRealtime();
         mBitrate = s.bitRate;
         mHttpErrorStatus = 0;
         return this;
@@ -105,6 +126,17 @@ public class StreamItem implements Parcelable {
         mRedirectedUrl = null;
     }
 
+    /**
+     * Invalidates the redirect only if it is still the given one, a request which failed
+     * with an old link must not throw away one which has been refreshed in the meantime.
+     */
+    public void invalidateRedirectUrl(URL redirect) {
+        // not URL.equals(), which resolves the host names
+        if (redirect != null && redirect == mRedirectedUrl) {
+            mRedirectedUrl = null;
+        }
+    }
+
     public boolean isRedirectValid() {
         return mContentLength > 0
                 && mRedirectedUrl != null;
@@ -133,6 +165,20 @@ public class StreamItem implements Parcelable {
         return System.currentTimeMillis() > mExpires;
     }
 
+    /**
+     * @return the expiration time of the redirect link in server time, 0 if unknown
+     */
+    public long getRedirectExpires() {
+        return mExpiresFromLink ? mExpires : 0;
+    }
+
+    /**
+     * @return milliseconds since the redirect link was resolved
+     */
+    public long getRedirectAge() {
+        return SystemClock.elapsedRealtime() - mResolvedAt;
+    }
+
     public long getContentLength() {
         return mContentLength;
     }
@@ -141,6 +187,47 @@ public class StreamItem implements Parcelable {
         return mBitrate;
     }
 
+    /**
+     * @return true if chunks are written to their position in a preallocated file, false if they
+     *         are appended in the order they arrived
+     */
+    public boolean hasPositionalChunks() {
+        return mPositionalChunks;
+    }
+
+    /* package */ void setPositionalChunks(boolean positional) {
+        mPositionalChunks = positional;
+    }
+
+    /**
+     * @return the number of chunks, starting from chunk 0, which have been added to the digest
+     */
+    /* package */ synchronized int digestedChunks() {
+        return mDigestedChunks;
+    }
+
+    /**
+     * Adds the next contiguous chunk to the content digest.
+     */
+    /* package */ synchronized void updateDigest(ByteBuffer chunk) {
+        mDigest.update(chunk);
+        mDigestedChunks++;
+        mDigestDirty = true;
+    }
+
+    /**
+     * @return the hex md5 of the content, or null if not all of it has been digested yet
+     */
+    /* package */ synchronized String contentMd5(int chunkSize) {
+        if (mContentLength > 0 &&
+            mDigestedChunks == numberOfChunks(chunkSize) &&
+            mDigest.length() == mContentLength) {
+            return mDigest.hexDigest();
+        } else {
+            return null;
+        }
+    }
+
     public Range byteRange() {
         return Range.from(0, getContentLength());
     }
@@ -185,6 +272,7 @@ public class StreamItem implements Parcelable {
         sb.append(", chunksToDownload=").append(missingChunks);
         sb.append(", httpStatus=").append(mHttpErrorStatus);
         sb.append(", downloadedChunks=").append(downloadedChunks);
+        sb.append(", positionalChunks=").append(mPositionalChunks);
         sb.append('}');
         return sb.toString();
     }
@@ -204,15 +292,123 @@ public class StreamItem implements Parcelable {
 
     // serialization support
 
-    public void toIndexFile(File f) throws IOException {
+    /**
+     * Writes a full checkpoint of the index, replacing the existing file and its journal.
+     */
+    public synchronized void toIndexFile(File f) throws IOException {
         mkdirs(f.getParentFile());
+        final File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
         DataOutputStream dos = null;
         try {
-            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
             write(dos);
         } finally {
             if (dos != null) dos.close();
         }
+        if (!tmp.renameTo(f)) {
+            IOUtils.deleteFile(tmp);
+            throw new IOException("could not rename " + tmp + " to " + f);
+        }
+        mIndexCheckpointed = true;
+        mJournalRecords = 0;
+    }
+
+    /**
+     * Appends a chunk record to the journal of an existing index file.
+     */
+    public synchronized void appendToIndexFile(File f, int chunkIndex) throws IOException {
+        if (!mIndexCheckpointed) throw new IOException("index has no checkpoint yet");
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f, true)));
+        try {
+            writeChunkRecord(dos, chunkIndex);
+            mJournalRecords++;
+            if (mDigestDirty) {
+                writeDigestRecord(dos);
+                mJournalRecords++;
+            }
+        } finally {
+            dos.close();
+        }
+    }
+
+    private void writeChunkRecord(DataOutputStream dos, int chunkIndex) throws IOException {
+        if (downloadedChunks.hasCrc(chunkIndex)) {
+            dos.writeByte(RECORD_CHUNK_CRC);
+            dos.writeInt(chunkIndex);
+            dos.writeInt(downloadedChunks.crcOf(chunkIndex));
+        } else {
+            dos.writeByte(RECORD_CHUNK);
+            dos.writeInt(chunkIndex);
+        }
+    }
+
+    private void writeDigestRecord(DataOutputStream dos) throws IOException {
+        dos.writeByte(RECORD_DIGEST);
+        dos.writeInt(mDigestedChunks);
+        mDigest.write(dos);
+        mDigestDirty = false;
+    }
+
+    /* package */ boolean hasIndexCheckpoint() {
+        return mIndexCheckpointed;
+    }
+
+    /* package */ int journalRecords() {
+        return mJournalRecords;
+    }
+
+    /**
+     * Writes the checksums of the chunks of a complete file, which lose their index file on
+     * completion. Chunks removed since are left out, so they are fetched again after a restart.
+     */
+    public synchronized void toChecksumFile(File f) throws IOException {
+        mkdirs(f.getParentFile());
+        final File tmp = new File(f.getParentFile(), f.getName() + ".tmp");
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            dos.writeInt(CHECKSUM_VERSION);
+            dos.writeLong(mContentLength);
+            dos.writeInt(downloadedChunks.size());
+            for (int index : downloadedChunks.toArray()) {
+                if (index == ChunkMap.EMPTY_SLOT) continue;
+                final boolean hasCrc = downloadedChunks.hasCrc(index);
+                dos.writeInt(index);
+                dos.writeBoolean(hasCrc);
+                dos.writeInt(hasCrc ? downloadedChunks.crcOf(index) : 0);
+            }
+        } finally {
+            if (dos != null) dos.close();
+        }
+        if (!tmp.renameTo(f)) {
+            IOUtils.deleteFile(tmp);
+            throw new IOException("could not rename " + tmp + " to " + f);
+        }
+    }
+
+    /**
+     * Restores the chunks and checksums of a complete file written by {@link #toChecksumFile(File)}.
+     */
+    /* package */ synchronized void readChecksumFile(File f) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            final int version = dis.readInt();
+            if (version != CHECKSUM_VERSION) throw new IOException("unknown checksum file version " + version);
+            final long contentLength = dis.readLong();
+            if (contentLength != mContentLength) {
+                throw new IOException("checksums are for " + contentLength + " bytes, file has " + mContentLength);
+            }
+            final int n = dis.readInt();
+            for (int i = 0; i < n; i++) {
+                final int index = dis.readInt();
+                final boolean hasCrc = dis.readBoolean();
+                final int crc = dis.readInt();
+                if (hasCrc) downloadedChunks.add(index, crc); else downloadedChunks.add(index);
+            }
+        } finally {
+            dis.close();
+        }
     }
 
     public static StreamItem fromIndexFile(File file) throws IOException {
@@ -236,10 +432,20 @@ public class StreamItem implements Parcelable {
         dos.writeUTF(url.toString());
         dos.writeLong(mContentLength);
         dos.writeUTF(mEtag == null ? "" : mEtag);
-        dos.writeInt(downloadedChunks.size());
-        for (Integer index : downloadedChunks) {
+        final int[] chunks = downloadedChunks.toArray();
+        dos.writeInt(chunks.length);
+        for (int index : chunks) {
             dos.writeInt(index);
         }
+        dos.writeBoolean(mPositionalChunks);
+        for (int index : chunks) {
+            if (downloadedChunks.hasCrc(index)) {
+                writeChunkRecord(dos, index);
+            }
+        }
+        if (mDigestedChunks > 0) {
+            writeDigestRecord(dos);
+        }
     }
 
     /* package */ static StreamItem read(DataInputStream dis) throws IOException {
@@ -250,12 +456,65 @@ public class StreamItem implements Parcelable {
         item.mEtag = dis.readUTF();
         int n = dis.readInt();
         for (int i = 0; i < n; i++) {
-            item.downloadedChunks.add(dis.readInt());
+            final int index = dis.readInt();
+            if (index == ChunkMap.EMPTY_SLOT) {
+                item.downloadedChunks.skipSlot();
+            } else {
+                item.downloadedChunks.add(index);
+            }
         }
+        // older index files end here and always use appended chunks
+        final int positional = dis.read();
+        item.mPositionalChunks = positional != -1 && positional != 0;
+        // records can't be appended to older files or after a torn record, a full index gets written first
+        item.mIndexCheckpointed = positional != -1 && item.replayJournal(dis);
         return item;
     }
 
 
+    /**
+     * @return false if the journal ends in a torn record
+     */
+    private boolean replayJournal(DataInputStream dis) throws IOException {
+        int type;
+        while ((type = dis.read()) != -1) {
+            switch (type) {
+                case RECORD_CHUNK:
+                case RECORD_CHUNK_CRC:
+                    final int chunkIndex, crc;
+                    try {
+                        chunkIndex = dis.readInt();
+                        crc = type == RECORD_CHUNK_CRC ? dis.readInt() : 0;
+                    } catch (EOFException e) {
+                        // torn write, the chunk will simply be fetched again
+                        return false;
+                    }
+                    if (chunkIndex < 0) throw new IOException("invalid chunk index " + chunkIndex);
+                    // checksums of chunks in the checkpoint don't count as journal records
+                    if (!downloadedChunks.contains(chunkIndex)) mJournalRecords++;
+                    downloadedChunks.add(chunkIndex);
+                    if (type == RECORD_CHUNK_CRC) downloadedChunks.setCrc(chunkIndex, crc);
+                    break;
+                case RECORD_DIGEST:
+                    final int digestedChunks;
+                    final ResumableMd5 digest;
+                    try {
+                        digestedChunks = dis.readInt();
+                        digest = ResumableMd5.read(dis);
+                    } catch (EOFException e) {
+                        return false;
+                    }
+                    mDigestedChunks = digestedChunks;
+                    mDigest = digest;
+                    mJournalRecords++;
+                    break;
+                default:
+                    throw new IOException("unknown journal record " + type);
+            }
+        }
+        return true;
+    }
+
     // parcelable support
     @Override
     public void writeToParcel(Parcel dest, int flags) {
@@ -266,6 +525,7 @@ public class StreamItem implements Parcelable {
         data.putBoolean("unavailable", mUnavailable);
         data.putLong("contentLength", mContentLength);
         data.putLong("expires", mExpires);
+        data.putBoolean("expiresFromLink", mExpiresFromLink);
         // TODO index + downloaded chunks
         dest.writeBundle(data);
     }
@@ -285,6 +545,7 @@ public class StreamItem implements Parcelable {
         mUnavailable = data.getBoolean("unavailable");
         mContentLength = data.getLong("contentLength");
         mExpires = data.getLong("expires");
+        mExpiresFromLink = data.getBoolean("expiresFromLink");
     }
 
     public static final Parcelable.Creator<StreamItem> CREATOR = new Parcelable.Creator<StreamItem>() {
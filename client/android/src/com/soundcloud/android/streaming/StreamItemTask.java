@@ -9,6 +9,7 @@ import java.io.IOException;
 public abstract class StreamItemTask {
     final StreamItem item;
     final ApiWrapper api;
+    private volatile boolean mCancelled;
 
     public StreamItemTask(StreamItem item, ApiWrapper api) {
         this.item = item;
@@ -17,6 +18,25 @@ public abstract class StreamItemTask {
 
     public abstract Bundle execute() throws IOException;
 
+    /**
+     * Marks the task as no longer needed. Tasks which are running stop as soon as possible
+     * and are not retried.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return the host the task talks to
+     */
+    public String host() {
+        return item.getUrl().getHost();
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName()+"{" +
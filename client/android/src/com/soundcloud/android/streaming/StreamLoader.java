@@ -3,7 +3,12 @@ package com.soundcloud.android.streaming;
 import com.soundcloud.api.ApiWrapper;
 import com.wehack.syncedQ.LLApplication;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -11,40 +16,112 @@ import android.os.Message;
 import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 public class StreamLoader {
     static final String LOG_TAG = StreamLoader.class.getSimpleName();
 
     static final int MAX_RETRIES = 3;
+    static final int DATA_WORKERS = 4;
+    static final int MAX_CONNECTIONS_PER_HOST = 3;
+    static final int MAX_CHUNKS_PER_REQUEST = 8;
     static final Object PRELOAD_TOKEN = new Object();
+    static final Object REFRESH_TOKEN = new Object();
+    static final Object RESUME_TOKEN = new Object();
+    static final long REDIRECT_REFRESH_MARGIN = 60 * 1000; // re-resolve links at most this long before they expire
+    static final long MIN_REDIRECT_REFRESH_INTERVAL = 30 * 1000; // but never more often than this
+    static final String PLAYCOUNT_FILE = "playcounts";
+    static final int PLAYCOUNT_BATCH_SIZE = 10;
+    static final boolean USE_PLAYCOUNT_API = false;
 
     private final Context mContext;
     private final StreamStorage mStorage;
 
     private final ItemQueue mItemsNeedingHeadRequests = new ItemQueue();
-    private final ItemQueue mItemsNeedingPlaycountRequests = new ItemQueue();
 
-    private StreamItem mCurrentItem;
+    private volatile StreamItem mCurrentItem; // written on the result thread only
 
-    private final Set<StreamFuture> mPlayerCallbacks = new HashSet<StreamFuture>();
+    // futures by the chunks they are still missing
+    private final CallbackRegistry mPlayerCallbacks = new CallbackRegistry();
+    // futures by the chunk their range starts in, receiving data while it is still downloading
+    private final CallbackRegistry mStreamingCallbacks = new CallbackRegistry();
     private final ItemQueue mHighPriorityQ = new ItemQueue();
     private final ItemQueue mLowPriorityQueue = new ItemQueue();
 
-    private final Set<StreamItem> mHeadTasks = Collections.synchronizedSet(new HashSet<StreamItem>());
-
-    private final StreamHandler mDataHandler;
+    private final Map<StreamItem, HeadTask> mHeadTasks = Collections.synchronizedMap(new HashMap<StreamItem, HeadTask>());
+    // low priority head tasks wait here, so they never get ahead of the ones the player waits for.
+    // only used on the result thread
+    private final LinkedList<HeadTask> mLowHeadTasks = new LinkedList<HeadTask>();
+    private HeadTask mLowHeadTask; // the one low priority head task handed to the head handler
+
+    private final DownloadPool mDataPool;
+    private final HttpTransport mTransport;
+    private final BandwidthEstimator mBandwidth = new BandwidthEstimator();
+    private final InFlightChunks mInFlight = new InFlightChunks();
+    private final ReadAheadPolicy mReadAhead;
+    private int mReadAheadEnd;  // chunks of the current item up to here have been requested already
+    private int mPlayhead;      // first chunk of the range last requested for the current item
     private final StreamHandler mHeadHandler;
+    private final RetryPolicy mRetryPolicy = new RetryPolicy(MAX_RETRIES);
+    private final CircuitBreaker mCircuitBreaker = new CircuitBreaker();
+    private volatile boolean mConnected = true;
+    private long mResumeAt; // uptime of the scheduled resume of held back requests, 0 if none
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final boolean connected = !intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
+            mResultHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onConnectivityChanged(connected);
+                }
+            });
+        }
+    };
     private final Handler mResultHandler;
     private final Handler mPlaycountHandler;
+    private StreamItem mPlaySessionItem;
+    private long mPlaySession;
+    private volatile boolean mStreaming; // chunks are being downloaded, playcounts have to wait
+    private int mMaxChunksPerRequest = MAX_CHUNKS_PER_REQUEST;
+
+    private final DataTask.ChunkListener mChunkListener = new DataTask.ChunkListener() {
+        @Override
+        public void onChunkProgress(DataTask task, int chunkIndex, PooledBuffer received) {
+            publishPartialData(task.item, chunkIndex, received);
+        }
+
+        @Override
+        public void onChunkRead(DataTask task, int chunkIndex, PooledBuffer chunk) {
+            // the player can carry on before the chunk has been stored
+            publishPartialData(task.item, chunkIndex, chunk);
+            mResultHandler.sendMessage(mResultHandler.obtainMessage(HI_PRIO, new ChunkRead(task, chunkIndex, chunk.retain())));
+        }
+    };
+
+    // drop futures which are done or have been given up by the player
+    private final StreamFuture.Listener mForgetPlayerCallback = new StreamFuture.Listener() {
+        @Override
+        public void onComplete(StreamFuture future) {
+            mPlayerCallbacks.remove(future);
+        }
+    };
+    private final StreamFuture.Listener mForgetStreamingCallback = new StreamFuture.Listener() {
+        @Override
+        public void onComplete(StreamFuture future) {
+            mStreamingCallbacks.remove(future);
+        }
+    };
 
     static final int LOW_PRIO = 0;
     static final int HI_PRIO = 1;
@@ -54,23 +131,30 @@ public class StreamLoader {
         mContext = context;
         mStorage = storage;
         mOldCloudAPI = LLApplication.instance.getApiWrapper();
+        mTransport = new HttpTransport(mOldCloudAPI.getUserAgent(), MAX_CONNECTIONS_PER_HOST);
+        mReadAhead = new ReadAheadPolicy(mBandwidth, storage.chunkSize);
         HandlerThread resultThread = new HandlerThread("streaming-result");
         resultThread.start();
 
         final Looper resultLooper = resultThread.getLooper();
         mResultHandler = new ResultHandler(this, resultLooper);
 
-        HandlerThread dataThread = new HandlerThread("streaming-data", android.os.Process.THREAD_PRIORITY_BACKGROUND);
-        dataThread.start();
-
-        mDataHandler = new StreamHandler(context, dataThread.getLooper(), mResultHandler, MAX_RETRIES);
+        mDataPool = new DownloadPool(context, mResultHandler, DATA_WORKERS, MAX_CONNECTIONS_PER_HOST,
+                mRetryPolicy, mCircuitBreaker);
 
         HandlerThread headThread = new HandlerThread("streaming-head", android.os.Process.THREAD_PRIORITY_BACKGROUND);
         headThread.start();
 
-        mHeadHandler = new StreamHandler(context, headThread.getLooper(), mResultHandler, MAX_RETRIES);
+        mHeadHandler = new StreamHandler(context, headThread.getLooper(), mResultHandler, mRetryPolicy, mCircuitBreaker);
 
-        mPlaycountHandler = new PlaycountHandler(this, resultLooper);
+        HandlerThread playcountThread = new HandlerThread("streaming-playcount", android.os.Process.THREAD_PRIORITY_LOWEST);
+        playcountThread.start();
+
+        mPlaycountHandler = new PlaycountHandler(this, playcountThread.getLooper(),
+                new PlaycountOutbox(new File(context.getFilesDir(), PLAYCOUNT_FILE)));
+        mPlaycountHandler.sendEmptyMessage(PlaycountHandler.LOAD);
+
+        context.registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 
     public StreamFuture getDataForUrl(URL url, Range range) throws IOException {
@@ -86,8 +170,8 @@ public class StreamLoader {
             @Override
             public void run() {
                 final StreamItem item = mStorage.getMetadata(url);
-                // request first 3 chunks for next item
-                Index missing = mStorage.getMissingChunksForItem(url, Range.from(0, 3));
+                // request the first read-ahead window of the next item
+                Index missing = mStorage.getMissingChunksForItem(url, Range.from(0, mReadAhead.windowChunks(item)));
                 if (!missing.isEmpty()) {
                     if (Log.isLoggable(LOG_TAG, Log.DEBUG))
                         Log.d(LOG_TAG, "Connected to wifi, preloading data for url " + url);
@@ -98,7 +182,46 @@ public class StreamLoader {
         }, PRELOAD_TOKEN, SystemClock.uptimeMillis() + delay);
     }
 
+    /**
+     * Resolves the stream urls of upcoming items in the background, so their redirect, content
+     * length and etag are known by the time they get played. Items which have a valid redirect
+     * already are skipped, the others are resolved in the given order, behind anything the
+     * player is waiting for.
+     */
+    public void resolveStreamUrls(final List<String> urls) {
+        mResultHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (String url : urls) {
+                    // complete items are played from disk, they never need a link
+                    if (mStorage.isComplete(url)) continue;
+                    final StreamItem item = mStorage.getMetadata(url);
+                    if (item.isAvailable() && (!item.isRedirectValid() || needsRedirectRefresh(item))) {
+                        if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+                            Log.d(LOG_TAG, "resolving ahead " + item);
+                        startHeadTask(item, LOW_PRIO);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return how long to wait before preloading the item queued up after the current one
+     */
+    public long getPreloadDelay() {
+        return mReadAhead.preloadDelay(mCurrentItem);
+    }
+
     public StreamFuture getDataForUrl(String url, Range range) throws IOException {
+        return getDataForUrl(url, range, 0);
+    }
+
+    /**
+     * @param playId identifies the play the data is requested for, a new id means the item
+     *               is played again. 0 if unknown, then only a change of item counts as a new play.
+     */
+    public StreamFuture getDataForUrl(String url, Range range, final long playId) throws IOException {
         if (Log.isLoggable(LOG_TAG, Log.DEBUG))
             Log.d(LOG_TAG, "Get data for url " + url + " " + range);
 
@@ -107,59 +230,193 @@ public class StreamLoader {
         // no point trying if item is no longer available
         if (!item.isAvailable()) throw new IOException("Item is not available");
 
-        final Index missing = mStorage.getMissingChunksForItem(url, range.chunkRange(mStorage.chunkSize));
+        final Range chunkRange = range.chunkRange(mStorage.chunkSize);
+        final Index missing = mStorage.getMissingChunksForItem(url, chunkRange);
         final StreamFuture pc = new StreamFuture(item, range);
-        if (!missing.isEmpty()) {
-            mResultHandler.post(new Runnable() {
-                @Override public void run() {
-                    mPlayerCallbacks.add(pc);
-                    if (mLowPriorityQueue.contains(item)) mLowPriorityQueue.remove(item);
-
-                    if (!item.equals(mCurrentItem)) {
-                        // always request playcounts when switching tracks
-                        mItemsNeedingPlaycountRequests.add(item);
-
-                        mCurrentItem = item;
-                        // remove low prio messages from handler
-                        mDataHandler.removeMessages(LOW_PRIO);
-                    }
-                    mHighPriorityQ.addItem(item, missing);
-                    processQueues();
-                }
-            });
-        } else {
+        if (missing.isEmpty()) {
             if (Log.isLoggable(LOG_TAG, Log.DEBUG))
                 Log.d(LOG_TAG, "Serving item from storage");
-            pc.setByteBuffer(mStorage.fetchStoredDataForUrl(url, range));
+            try {
+                pc.setData(mStorage.fetchStoredDataForUrl(url, range));
+                mResultHandler.post(new Runnable() {
+                    @Override public void run() {
+                        // keep reading ahead while playing from storage
+                        if (item.equals(mCurrentItem)) {
+                            mPlayhead = chunkRange.start;
+                            if (mHighPriorityQ.addItem(item, readAhead(item, chunkRange))) processQueues();
+                        }
+                    }
+                });
+                return pc;
+            } catch (CorruptChunkException e) {
+                Log.w(LOG_TAG, e.getMessage() + ", fetching it again");
+                missing.or(mStorage.getMissingChunksForItem(url, chunkRange));
+                missing.set(e.chunkIndex);
+            }
         }
+
+        mStreamingCallbacks.add(pc, Index.create(chunkRange.start));
+        pc.addListener(mForgetStreamingCallback);
+        mResultHandler.post(new Runnable() {
+            @Override public void run() {
+                waitForChunks(pc);
+                pc.addListener(mForgetPlayerCallback, mResultHandler);
+                if (mLowPriorityQueue.contains(item)) mLowPriorityQueue.remove(item);
+
+                if (!item.equals(mCurrentItem)) {
+                    mCurrentItem = item;
+                    mReadAheadEnd = 0;
+                    if (item.isRedirectValid()) scheduleRedirectRefresh(item);
+                    // remove low prio tasks which haven't started yet
+                    for (DataTask t : mDataPool.removePending(LOW_PRIO)) {
+                        mInFlight.remove(t.item, t.chunkRange);
+                    }
+                }
+                mPlayhead = chunkRange.start;
+                missing.or(readAhead(item, chunkRange));
+                // the player is waiting for this item, serve it first
+                if (!mHighPriorityQ.addItem(item, missing)) mHighPriorityQ.moveToFront(item);
+                cancelStaleTasks(item);
+                processQueues();
+                // after the downloads have been started, so the playcount doesn't compete with them
+                countPlay(item, playId);
+            }
+        });
         return pc;
     }
 
+    /**
+     * @param maxChunks the maximum number of adjacent missing chunks fetched with a single request
+     */
+    public void setMaxChunksPerRequest(int maxChunks) {
+        if (maxChunks < 1) throw new IllegalArgumentException("need at least one chunk per request");
+        mMaxChunksPerRequest = maxChunks;
+    }
+
     public boolean logPlaycount(String url) {
-        return mPlaycountHandler.sendMessage(mPlaycountHandler.obtainMessage(LOW_PRIO, url));
+        return logPlaycount(url, 0);
+    }
+
+    /**
+     * @param playId see {@link #getDataForUrl(String, Range, long)}
+     */
+    public boolean logPlaycount(final String url, final long playId) {
+        return mResultHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                countPlay(mStorage.getMetadata(url), playId);
+            }
+        });
+    }
+
+    /**
+     * Queues a playcount for the item, unless it has already been counted in the current play
+     * session, e.g. when the player seeks. Sessions are the plays identified by the player, or
+     * without a play id everything up to the next change of item.
+     */
+    private void countPlay(StreamItem item, long playId) {
+        final boolean sameItem = item.equals(mPlaySessionItem);
+        if (playId != 0) {
+            if (sameItem && playId == mPlaySession) return;
+            mPlaySession = playId;
+        } else if (!sameItem) {
+            mPlaySession = System.currentTimeMillis();
+        } else {
+            return;
+        }
+        mPlaySessionItem = item;
+        mPlaycountHandler.sendMessage(mPlaycountHandler.obtainMessage(PlaycountHandler.ADD,
+                new PlaycountOutbox.Entry(item.streamItemUrl(), item.trackId, mPlaySession)));
+    }
+
+    /**
+     * Lets the playcount worker know when chunk downloads have finished, so it can catch up.
+     */
+    private void updateStreaming() {
+        final boolean streaming = mDataPool.runningTasks() > 0;
+        final boolean idle = mStreaming && !streaming;
+        mStreaming = streaming;
+        if (idle) mPlaycountHandler.sendEmptyMessage(PlaycountHandler.DRAIN);
+    }
+
+    /* package */ HttpTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * @return the state of the request pipeline, for diagnostics
+     */
+    public String getDiagnostics() {
+        return "connected=" + mConnected +
+                ", " + mCircuitBreaker +
+                ", " + mDataPool +
+                ", " + mTransport;
     }
 
     public void stop() {
-//        mConnectivityListener.stopListening();
-//        mConnectivityListener.unregisterHandler(mConnHandler);
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG, "stopping, " + mTransport);
+        mTransport.shutdown();
+        mContext.unregisterReceiver(mConnectivityReceiver);
 //        mBatteryListener.stopListening();
     }
 
     private void processQueues() {
-//        if (isConnected()) {
+        if (mConnected) {
             processHighPriorityQueue();
 
             if (mHeadHandler.hasMessages(HI_PRIO) ||
-                mDataHandler.hasMessages(HI_PRIO)) {
+                mDataPool.hasPending(HI_PRIO)) {
                 if (Log.isLoggable(LOG_TAG, Log.DEBUG))
                     Log.d(LOG_TAG, "still hi-prio tasks, skip processing of lo-prio queue");
             } else {
                 processLowPriorityQueue();
             }
-//        } else {
-//            if (Log.isLoggable(LOG_TAG, Log.DEBUG))
-//                Log.d(LOG_TAG, "not connected, skip processing of queues");
-//        }
+        } else {
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+                Log.d(LOG_TAG, "not connected, skip processing of queues");
+        }
+    }
+
+    private void onConnectivityChanged(boolean connected) {
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+            Log.d(LOG_TAG, "connectivity changed, connected=" + connected + ", " + mCircuitBreaker);
+
+        final boolean reconnected = connected && !mConnected;
+        mConnected = connected;
+        if (reconnected) {
+            // failures were most likely down to the connection, try all hosts again right away
+            mCircuitBreaker.reset();
+            mResultHandler.removeCallbacksAndMessages(RESUME_TOKEN);
+            mResumeAt = 0;
+            processQueues();
+        }
+    }
+
+    /**
+     * @return false if requests to the host are held back after repeated failures. Processing
+     *         resumes once the host may be tried again.
+     */
+    private boolean isHostAvailable(String host) {
+        if (!mCircuitBreaker.isOpen(host)) return true;
+
+        final long retryAfter = mCircuitBreaker.retryAfter(host);
+        // otherwise a trial request is running, its result triggers processing
+        final long resumeAt = SystemClock.uptimeMillis() + retryAfter;
+        // resume for the host which can be tried first, the others get rescheduled then
+        if (retryAfter > 0 && (mResumeAt == 0 || resumeAt < mResumeAt)) {
+            mResultHandler.removeCallbacksAndMessages(RESUME_TOKEN);
+            mResumeAt = resumeAt;
+            mResultHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    mResumeAt = 0;
+                    processQueues();
+                }
+            }, RESUME_TOKEN, resumeAt);
+        }
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+            Log.d(LOG_TAG, "holding back requests to " + host + " for " + retryAfter + "ms");
+        return false;
     }
 
     private void processHighPriorityQueue() {
@@ -181,44 +438,253 @@ public class StreamLoader {
             if (!item.isAvailable()) q.remove(item);
             //If there is a valid redirect for the item, download first chunk
             else if (item.isRedirectValid()) {
+                if (!isHostAvailable(item.redirectUrl().getHost())) continue;
 
+                if (needsRedirectRefresh(item)) {
+                    // about to expire, fetch a new link but keep using this one until it arrives
+                    startHeadTask(item, prio);
+                }
+                pruneMissingChunks(item);
                 if (!item.missingChunks.isEmpty()) {
-                    Range chunkRange = Range.from(item.missingChunks.first(), 1);
-                    q.removeIfCompleted(item, chunkRange.toIndex());
-                    startDataTask(item, chunkRange, prio);
+                    // keep the workers busy, but don't queue up more than they can take right now.
+                    // the player is waiting for high priority chunks, always request at least one
+                    int requested = 0;
+                    while (q.contains(item) &&
+                          (mDataPool.hasCapacity(prio) || (prio == HI_PRIO && requested == 0))) {
+                        Range chunkRange = nextRequest(item);
+                        q.removeIfCompleted(item, chunkRange.toIndex());
+                        startDataTask(item, chunkRange, prio);
+                        requested++;
+                    }
                 } else {
                     Log.d(LOG_TAG, "already downloaded all chunks");
                     q.remove(item);
                 }
-            } else {
+            } else if (isHostAvailable(item.getUrl().getHost())) {
                 startHeadTask(item, prio);
             }
         }
     }
 
-    private void fulfillPlayerCallbacks() {
-        List<StreamFuture> fulfilledCallbacks = new ArrayList<StreamFuture>();
-        for (StreamFuture future : mPlayerCallbacks) {
-            StreamItem item = future.item;
-            Range chunkRange = future.byteRange.chunkRange(mStorage.chunkSize);
+    /**
+     * @return the time left until the redirect link of the item expires, measured with the
+     *         clock of the stream hosts, or Long.MAX_VALUE if unknown
+     */
+    private long redirectExpiresIn(StreamItem item) {
+        final ServerClock clock = mTransport.getServerClock();
+        if (item.getRedirectExpires() <= 0 || !clock.hasOffset()) {
+            return Long.MAX_VALUE;
+        } else {
+            return item.getRedirectExpires() - clock.now();
+        }
+    }
 
-            Index missingIndexes = mStorage.getMissingChunksForItem(item.streamItemUrl(), chunkRange);
-            if (missingIndexes.isEmpty()) {
-                fulfilledCallbacks.add(future);
-            } else {
-                if (Log.isLoggable(LOG_TAG, Log.DEBUG))
-                    Log.d(LOG_TAG, "still missing indexes, not fullfilling callback");
+    /**
+     * @return true if the redirect link of the item is about to expire and hasn't been resolved
+     *         just now
+     */
+    private boolean needsRedirectRefresh(StreamItem item) {
+        final long expiresIn = redirectExpiresIn(item);
+        return expiresIn != Long.MAX_VALUE &&
+               expiresIn < redirectRefreshMargin(item, expiresIn) &&
+               item.getRedirectAge() >= MIN_REDIRECT_REFRESH_INTERVAL;
+    }
+
+    /**
+     * @return how long before expiry the link gets resolved again: a quarter of its lifetime,
+     *         so short lived links don't need refreshing as soon as they arrive
+     */
+    private static long redirectRefreshMargin(StreamItem item, long expiresIn) {
+        final long lifetime = expiresIn + item.getRedirectAge();
+        return Math.max(0, Math.min(REDIRECT_REFRESH_MARGIN, lifetime / 4));
+    }
+
+    /**
+     * Re-resolves the redirect of the current item in the background shortly before it expires,
+     * so playback never has to wait for a new link.
+     */
+    private void scheduleRedirectRefresh(final StreamItem item) {
+        final long expiresIn = redirectExpiresIn(item);
+        if (expiresIn == Long.MAX_VALUE || !item.equals(mCurrentItem)) return;
+
+        final long delay = Math.max(expiresIn - redirectRefreshMargin(item, expiresIn),
+                MIN_REDIRECT_REFRESH_INTERVAL - item.getRedirectAge());
+
+        mResultHandler.removeCallbacksAndMessages(REFRESH_TOKEN);
+        mResultHandler.postAtTime(new Runnable() {
+            @Override
+            public void run() {
+                if (item.equals(mCurrentItem) && item.isAvailable()) {
+                    if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+                        Log.d(LOG_TAG, "refreshing redirect of " + item);
+                    startHeadTask(item, LOW_PRIO);
+                }
             }
+        }, REFRESH_TOKEN, SystemClock.uptimeMillis() + Math.max(0, delay));
+    }
+
+    /**
+     * @return the missing chunks within the read-ahead window following the requested chunks,
+     *         which have not been requested before
+     */
+    private Index readAhead(StreamItem item, Range chunkRange) {
+        if (chunkRange.start < mReadAheadEnd - mReadAhead.windowChunks(item) - chunkRange.length ||
+            chunkRange.start > mReadAheadEnd) {
+            // seek, start over from the new position
+            mReadAheadEnd = chunkRange.end();
         }
+        final int start = Math.max(mReadAheadEnd, chunkRange.end());
+        final int end = chunkRange.end() + mReadAhead.windowChunks(item);
+        if (start >= end) return Index.empty();
 
-        for (StreamFuture sf : fulfilledCallbacks) {
-            try {
-                sf.setByteBuffer(mStorage.fetchStoredDataForUrl(sf.item.streamItemUrl(), sf.byteRange));
-                mPlayerCallbacks.remove(sf);
-            } catch (IOException e) {
-                Log.w(LOG_TAG, e);
+        mReadAheadEnd = end;
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+            Log.d(LOG_TAG, "reading ahead chunks " + start + "-" + end + ", " + mReadAhead.targetSeconds(item) + "s");
+        return mStorage.getMissingChunksForItem(item.streamItemUrl(), Range.from(start, end - start));
+    }
+
+    /**
+     * Removes chunks from the missing chunks of the item which have been stored in the meantime,
+     * or are already on their way. Whoever waits for them gets served once they arrive.
+     */
+    private void pruneMissingChunks(StreamItem item) {
+        for (Iterator<Integer> it = item.missingChunks.iterator(); it.hasNext(); ) {
+            if (item.downloadedChunks.contains(it.next())) it.remove();
+        }
+        if (mInFlight.removeFrom(item, item.missingChunks) && Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+            Log.d(LOG_TAG, "not requesting chunks twice, " + mInFlight);
+        }
+    }
+
+    /**
+     * @return the missing chunk closest to a position the player is waiting for, together with
+     *         the missing chunks directly following it, up to the maximum number of chunks per request
+     */
+    private Range nextRequest(StreamItem item) {
+        final int first = nextChunk(item);
+        int end = Math.min(item.missingChunks.nextClearBit(first), first + mMaxChunksPerRequest);
+        if (item.getContentLength() > 0) {
+            end = Math.min(end, Math.max(first + 1, item.numberOfChunks(mStorage.chunkSize)));
+        }
+        return Range.from(first, end - first);
+    }
+
+    private void publishPartialData(StreamItem item, int chunkIndex, PooledBuffer received) {
+        for (StreamFuture f : mStreamingCallbacks.waitingFor(item, chunkIndex)) {
+            f.setPartialData(chunkIndex, mStorage.chunkSize, received);
+        }
+    }
+
+    /**
+     * Ranks the missing chunks of the item by their distance to the playheads, the start of the
+     * ranges the player is waiting for. Chunks behind all playheads come last.
+     */
+    private int nextChunk(StreamItem item) {
+        int best = -1;
+        for (int playhead : playheads(item)) {
+            final int next = item.missingChunks.nextSetBit(playhead);
+            if (next != -1 && (best == -1 || next - playhead < best - playhead)) {
+                best = next;
+            }
+        }
+        return best != -1 ? best : item.missingChunks.first();
+    }
+
+    /**
+     * @return the first chunks of all ranges the player is currently waiting for, and of the
+     *         range it requested last
+     */
+    private List<Integer> playheads(StreamItem item) {
+        final List<Integer> playheads = new ArrayList<Integer>();
+        if (item.equals(mCurrentItem)) playheads.add(mPlayhead);
+        for (StreamFuture f : mPlayerCallbacks.futuresFor(item)) {
+            if (!f.isDone() && !f.isCancelled()) {
+                playheads.add(f.byteRange.start / mStorage.chunkSize);
+            }
+        }
+        return playheads;
+    }
+
+    /**
+     * Cancels downloads of the item which none of the playheads need any more, typically after
+     * a seek: ranges behind the playheads, or too far ahead of them. Their chunks go back to the
+     * queue and get ranked again.
+     */
+    private void cancelStaleTasks(StreamItem item) {
+        final List<Integer> playheads = playheads(item);
+        if (playheads.isEmpty()) return;
+
+        final int window = mReadAhead.windowChunks(item) + mMaxChunksPerRequest;
+        for (DataTask task : mDataPool.tasksFor(item)) {
+            if (task.isCancelled() || isWanted(task.chunkRange, playheads, window)) continue;
+
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+                Log.d(LOG_TAG, "canceling stale " + task + ", playheads " + playheads);
+
+            if (mDataPool.cancel(task)) {
+                mInFlight.remove(item, task.chunkRange);
+                mHighPriorityQ.addItem(item, task.chunkRange.toIndex());
+            }
+        }
+    }
+
+    private static boolean isWanted(Range chunkRange, List<Integer> playheads, int window) {
+        for (int playhead : playheads) {
+            if (chunkRange.end() > playhead && chunkRange.start < playhead + window) return true;
+        }
+        return false;
+    }
+
+    private void onChunkRead(StreamItem item, int chunkIndex, PooledBuffer chunk) {
+        mInFlight.remove(item, chunkIndex);
+        // for responsiveness, try to fulfill callbacks directly before storing buffer
+        final Range byteRange = Range.from(chunkIndex, 1).byteRange(mStorage.chunkSize);
+        for (StreamFuture cb : mPlayerCallbacks.waitingFor(item, chunkIndex)) {
+            if (cb.byteRange.equals(byteRange)) {
+                cb.setData(chunk.view(chunk.data().asReadOnlyBuffer()));
+                mPlayerCallbacks.remove(cb);
             }
         }
+        try {
+            mStorage.storeData(item.streamItemUrl(), chunk, chunkIndex);
+            // only the futures which were waiting for this chunk can be complete now
+            for (StreamFuture cb : mPlayerCallbacks.chunkAvailable(item, chunkIndex)) {
+                fulfill(cb);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "exception storing data", e);
+        }
+    }
+
+    /**
+     * Registers the future for the chunks of its range which are still missing, or completes it
+     * right away if there are none.
+     */
+    private void waitForChunks(StreamFuture future) {
+        if (future.isDone() || future.isCancelled()) return;
+
+        final Index missing = mStorage.getMissingChunksForItem(future.item.streamItemUrl(),
+                future.byteRange.chunkRange(mStorage.chunkSize));
+        if (missing.isEmpty()) {
+            mPlayerCallbacks.remove(future);
+            fulfill(future);
+        } else {
+            mPlayerCallbacks.add(future, missing);
+        }
+    }
+
+    private void fulfill(StreamFuture future) {
+        try {
+            future.setData(mStorage.fetchStoredDataForUrl(future.item.streamItemUrl(), future.byteRange));
+        } catch (CorruptChunkException e) {
+            // only the corrupt chunk needs to be fetched again, the callback waits for it
+            Log.w(LOG_TAG, e.getMessage() + ", fetching it again");
+            mPlayerCallbacks.add(future, Index.create(e.chunkIndex));
+            mHighPriorityQ.addItem(future.item, Index.create(e.chunkIndex));
+        } catch (IOException e) {
+            Log.w(LOG_TAG, e);
+            future.cancel(true);
+        }
     }
 
     private DataTask startDataTask(StreamItem item, Range chunkRange, int prio) {
@@ -231,13 +697,13 @@ public class StreamLoader {
 
             return null;
         } else {
-            final DataTask task = DataTask.create(item, chunkRange, byteRange, mOldCloudAPI);
-            Message msg = mDataHandler.obtainMessage(prio, task);
-            if (prio == HI_PRIO) {
-                mDataHandler.sendMessageAtFrontOfQueue(msg);
-            } else {
-                mDataHandler.sendMessage(msg);
-            }
+            final DataTask task = DataTask.create(item, chunkRange, byteRange, mOldCloudAPI, mTransport,
+                                                  mStorage.getBufferPool())
+                                          .setChunkListener(mChunkListener);
+            mInFlight.add(item, chunkRange);
+            mDataPool.submit(task, prio);
+            // right away, not only once a result arrives, so playcounts queued meanwhile wait
+            mStreaming = true;
             return task;
         }
     }
@@ -245,13 +711,17 @@ public class StreamLoader {
     private HeadTask startHeadTask(StreamItem item, int prio) {
         if (item.isAvailable()) {
                 synchronized (mHeadTasks) {
-                    if (!mHeadTasks.contains(item)) {
-                        mHeadTasks.add(item);
+                    final HeadTask existing = mHeadTasks.get(item);
+                    if (existing == null) {
                         HeadTask ht = new HeadTask(item, mOldCloudAPI, true);
-                        Message msg = mHeadHandler.obtainMessage(prio, ht);
-                        mHeadHandler.sendMessage(msg);
+                        mHeadTasks.put(item, ht);
+                        sendHeadTask(ht, prio);
                         return ht;
                     } else {
+                        if (prio == HI_PRIO && mLowHeadTasks.remove(existing)) {
+                            // resolved ahead of time but not there yet, the player is waiting for it now
+                            sendHeadTask(existing, HI_PRIO);
+                        }
                         return null;
                     }
                 }
@@ -261,6 +731,27 @@ public class StreamLoader {
         }
     }
 
+    /**
+     * High priority tasks run in the order they were sent. Low priority ones are handed to the
+     * head handler one at a time and only while no high priority task is waiting, so the player
+     * waits behind at most one of them.
+     */
+    private void sendHeadTask(HeadTask task, int prio) {
+        if (prio == HI_PRIO) {
+            mHeadHandler.sendMessage(mHeadHandler.obtainMessage(HI_PRIO, task));
+        } else {
+            mLowHeadTasks.add(task);
+            sendNextLowHeadTask();
+        }
+    }
+
+    private void sendNextLowHeadTask() {
+        if (mLowHeadTask == null && !mLowHeadTasks.isEmpty() && !mHeadHandler.hasMessages(HI_PRIO)) {
+            mLowHeadTask = mLowHeadTasks.removeFirst();
+            mHeadHandler.sendMessage(mHeadHandler.obtainMessage(LOW_PRIO, mLowHeadTask));
+        }
+    }
+
     private static final class ResultHandler extends Handler {
 
         private WeakReference<StreamLoader> mLoaderRef;
@@ -284,65 +775,160 @@ public class StreamLoader {
             if (msg.obj instanceof HeadTask) {
                 HeadTask t = (HeadTask) msg.obj;
                 loader.mHeadTasks.remove(t.item);
-                if (t.item.isAvailable()) {
+                if (t == loader.mLowHeadTask) loader.mLowHeadTask = null;
+                loader.sendNextLowHeadTask();
+                final Bundle data = msg.peekData();
+                if (t.item.isAvailable() && (data == null || !data.getBoolean("success"))) {
+                    // refused by an open circuit or failed, nothing new to store
+                    if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+                        Log.d(LOG_TAG, "head request for " + t.item + " did not succeed");
+                } else if (t.item.isAvailable()) {
                     loader.mStorage.storeMetadata(t.item);
+                    loader.scheduleRedirectRefresh(t.item);
+                    // with the content length known, futures might need fewer chunks than assumed
+                    for (StreamFuture f : loader.mPlayerCallbacks.futuresFor(t.item)) {
+                        loader.waitForChunks(f);
+                    }
                 } else {
                     // item not available, cancel futures
                     if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
                         Log.d(LOG_TAG, "canceling load of item "+t.item);
                     }
 
-                    for (StreamFuture f : new ArrayList<StreamFuture>(loader.mPlayerCallbacks)) {
-                        if (f.item.equals(t.item)) {
-                            if (f.cancel(true)) {
-                                loader.mPlayerCallbacks.remove(f);
-                            }
-                        }
+                    for (StreamFuture f : loader.mPlayerCallbacks.futuresFor(t.item)) {
+                        loader.mPlayerCallbacks.remove(f);
+                        f.cancel(true);
                     }
                 }
+            } else if (msg.obj instanceof ChunkRead) {
+                ChunkRead c = (ChunkRead) msg.obj;
+                try {
+                    loader.onChunkRead(c.task.item, c.chunkIndex, c.chunk);
+                } finally {
+                    c.chunk.release();
+                }
             } else if (msg.obj instanceof DataTask) {
+                // chunks have already been handled as they were read
                 DataTask t = (DataTask) msg.obj;
-                if (msg.peekData() == null || !msg.getData().containsKey("success")) {
-                    // some failure, re-add item to queue, will be retried next time
-                    loader.mHighPriorityQ.addItem(t.item, t.chunkRange.toIndex());
-                } else {
-                    // for responsiveness, try to fulfill callbacks directly before storing buffer
-                    for (Iterator<StreamFuture> it = loader.mPlayerCallbacks.iterator(); it.hasNext(); ) {
-                        StreamFuture cb = it.next();
-                        if (cb.item.equals(t.item) && cb.byteRange.equals(t.byteRange)) {
-                            cb.setByteBuffer(t.buffer.asReadOnlyBuffer());
-                            it.remove();
-                        }
-                    }
-                    try {
-                        loader.mStorage.storeData(t.item.streamItemUrl(), t.buffer, t.chunkRange.start);
-                        loader.fulfillPlayerCallbacks();
-                    } catch (IOException e) {
-                        Log.e(LOG_TAG, "exception storing data", e);
-                    }
+                loader.mDataPool.finished(t);
+                t.release();
+                final Bundle data = msg.peekData();
+                if (data != null && data.containsKey("duration")) {
+                    loader.mBandwidth.addSample(data.getInt("bytes"), data.getLong("duration"), data.getLong("latency"));
+                }
+                final Range unread = t.unreadChunks();
+                if (unread != null) loader.mInFlight.remove(t.item, unread);
+                if (unread != null) {
+                    // some failure, canceled or a short response, re-add missing chunks to queue, will be retried next time
+                    loader.mHighPriorityQ.addItem(t.item, unread.toIndex());
                 }
             }
             loader.processQueues();
+            loader.updateStreaming();
         }
 
     }
 
+    private static final class ChunkRead {
+        final DataTask task;
+        final int chunkIndex;
+        final PooledBuffer chunk;
+
+        ChunkRead(DataTask task, int chunkIndex, PooledBuffer chunk) {
+            this.task = task;
+            this.chunkIndex = chunkIndex;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public String toString() {
+            return "ChunkRead{" +
+                    "chunkIndex=" + chunkIndex +
+                    ", task=" + task +
+                    '}';
+        }
+    }
+
+    /**
+     * Sends queued playcounts in batches on its own low priority thread, while no chunks are
+     * being downloaded.
+     */
     private static final class PlaycountHandler extends Handler {
-        private WeakReference<StreamLoader> mLoaderRef;
+        static final int LOAD = 0;
+        static final int ADD = 1;
+        static final int DRAIN = 2;
+
+        private final WeakReference<StreamLoader> mLoaderRef;
+        private final PlaycountOutbox mOutbox;
 
-        private PlaycountHandler(StreamLoader loader, Looper looper) {
+        private PlaycountHandler(StreamLoader loader, Looper looper, PlaycountOutbox outbox) {
             super(looper);
             this.mLoaderRef = new WeakReference<StreamLoader>(loader);
+            this.mOutbox = outbox;
         }
 
         @Override
         public void handleMessage(Message msg) {
             final StreamLoader loader = mLoaderRef.get();
-            if (loader != null) {
-                String url = msg.obj.toString();
-                loader.mItemsNeedingPlaycountRequests.add(loader.mStorage.getMetadata(url));
-                loader.processQueues();
+            if (loader == null) {
+                return;
+            }
+
+            switch (msg.what) {
+                case LOAD:
+                    try {
+                        mOutbox.load();
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, "could not load playcounts", e);
+                    }
+                    break;
+                case ADD:
+                    final PlaycountOutbox.Entry e = (PlaycountOutbox.Entry) msg.obj;
+                    if (mOutbox.add(e.url, e.trackId, e.session)) {
+                        store();
+                    } else if (Log.isLoggable(LOG_TAG, Log.DEBUG)) {
+                        Log.d(LOG_TAG, "playcount already queued: " + e);
+                    }
+                    break;
+            }
+            drain(loader);
+        }
+
+        private void drain(StreamLoader loader) {
+            removeMessages(DRAIN);
+            // drained again once the downloads are done
+            if (loader.mStreaming || mOutbox.isEmpty()) return;
+
+            final long now = System.currentTimeMillis();
+            for (PlaycountOutbox.Entry e : mOutbox.due(now, PLAYCOUNT_BATCH_SIZE)) {
+                if (loader.mStreaming) break;
+                try {
+                    final Bundle b = new PlaycountTask(new StreamItem(e.url), loader.mOldCloudAPI, USE_PLAYCOUNT_API).execute();
+                    if (!b.getBoolean("success")) {
+                        Log.w(LOG_TAG, "playcount not accepted, dropping " + e);
+                    }
+                    mOutbox.remove(e);
+                } catch (IOException ex) {
+                    Log.w(LOG_TAG, "could not log playcount " + e, ex);
+                    if (!mOutbox.retry(e, now)) {
+                        Log.w(LOG_TAG, "giving up on playcount " + e);
+                    }
+                }
+            }
+            store();
+
+            final long next = mOutbox.nextDue();
+            if (next != -1 && !loader.mStreaming) {
+                sendEmptyMessageDelayed(DRAIN, Math.max(0, next - System.currentTimeMillis()));
+            }
+        }
+
+        private void store() {
+            try {
+                mOutbox.store();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "could not store playcounts", e);
             }
         }
     }
-}
\ No newline at end of file
+}
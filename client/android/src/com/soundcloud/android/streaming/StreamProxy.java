@@ -34,6 +34,7 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -57,6 +58,7 @@ public class StreamProxy implements Runnable {
 
     private static final String PARAM_STREAM_URL = "streamUrl";
     private static final String PARAM_NEXT_STREAM_URL = "nextStreamUrl";
+    private static final String PARAM_PLAY_ID = "playId";
     private int mPort;
 
     private boolean mIsRunning = true;
@@ -207,7 +209,22 @@ public class StreamProxy implements Runnable {
         return storage.getMetadata(url);
     }
 
+    /**
+     * Resolves the given stream urls in the background, ahead of playback.
+     */
+    public void resolveStreamUrls(List<String> streamUrls) {
+        loader.resolveStreamUrls(streamUrls);
+    }
+
     public Uri createUri(String streamUrl, String nextStreamUrl) {
+        return createUri(streamUrl, nextStreamUrl, 0);
+    }
+
+    /**
+     * @param playId identifies this play of the stream, so playing it again counts as another play.
+     *               0 if not known.
+     */
+    public Uri createUri(String streamUrl, String nextStreamUrl, long playId) {
         if (TextUtils.isEmpty(streamUrl)) throw new IllegalArgumentException("streamUrl is empty");
 
         final Uri.Builder builder = Uri.parse("http://127.0.0.1:" + getPort()).buildUpon();
@@ -216,6 +233,9 @@ public class StreamProxy implements Runnable {
         if (nextStreamUrl != null) {
             builder.appendQueryParameter(PARAM_NEXT_STREAM_URL, nextStreamUrl);
         }
+        if (playId != 0) {
+            builder.appendQueryParameter(PARAM_PLAY_ID, String.valueOf(playId));
+        }
         return builder.build();
     }
 
@@ -247,6 +267,7 @@ public class StreamProxy implements Runnable {
         final Uri uri = Uri.parse(request.getURI().toString());
         final String streamUrl = uri.getQueryParameter(PARAM_STREAM_URL);
         final String nextUrl = uri.getQueryParameter(PARAM_NEXT_STREAM_URL);
+        final long playId = playId(uri);
 
         if (Log.isLoggable(LOG_TAG, Log.DEBUG)) Log.d(LOG_TAG,
                 String.format("processRequest: url=%s, port=%d, firstByte=%d", streamUrl, client.getPort(), firstRequestedByte(request)));
@@ -255,16 +276,17 @@ public class StreamProxy implements Runnable {
 
         try {
             if (streamUrl == null) throw new IOException("missing stream url parameter");
+            storage.setPlaybackItems(streamUrl, nextUrl);
 
             final long startByte = firstRequestedByte(request);
             final SocketChannel channel = client.getChannel();
             Map<String, String> headers = headerMap();
 
             final File completeFile = storage.completeFileForUrl(streamUrl);
-            if (completeFile.exists()) {
-                streamCompleteFile(request, streamUrl, nextUrl, completeFile, startByte, channel, headers);
+            if (storage.isComplete(streamUrl)) {
+                streamCompleteFile(request, streamUrl, nextUrl, playId, completeFile, startByte, channel, headers);
             } else {
-                writeChunks(request, streamUrl, nextUrl, startByte, channel, headers);
+                writeChunks(request, streamUrl, nextUrl, playId, startByte, channel, headers);
             }
         } catch (SocketException e) {
             final String msg = e.getMessage();
@@ -296,6 +318,17 @@ public class StreamProxy implements Runnable {
         }
     }
 
+    private static long playId(Uri uri) {
+        final String playId = uri.getQueryParameter(PARAM_PLAY_ID);
+        if (playId == null) return 0;
+        try {
+            return Long.parseLong(playId);
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "invalid play id " + playId);
+            return 0;
+        }
+    }
+
     private void logRequest(HttpUriRequest request) {
         for (Header h : request.getAllHeaders()) {
             Log.d(LOG_TAG, h.getName()+": "+h.getValue());
@@ -338,37 +371,41 @@ public class StreamProxy implements Runnable {
         return ByteBuffer.wrap(sb.toString().getBytes());
     }
 
-    private void writeChunks(HttpUriRequest request, String streamUrl, String nextUrl, final long startByte,
+    private void writeChunks(HttpUriRequest request, String streamUrl, String nextUrl, long playId, final long startByte,
                              SocketChannel channel,
                              Map<String, String> headers)
             throws IOException, InterruptedException, TimeoutException, ExecutionException {
 
         ByteBuffer buffer;
+        boolean headerWritten = false;
         for (long offset = startByte; isRunning();) {
-            StreamFuture stream = loader.getDataForUrl(streamUrl, Range.from(offset, storage.chunkSize));
+            // requests end at chunk boundaries, so data can be passed on while the chunk is still downloading
+            final int length = storage.chunkSize - (int) (offset % storage.chunkSize);
+            StreamFuture stream = loader.getDataForUrl(streamUrl, Range.from(offset, length), playId);
             try {
                 if (offset == startByte) {
                     // first chunk
-                    buffer = stream.get(INITIAL_TIMEOUT, TimeUnit.SECONDS);
-                    final long length = stream.item.getContentLength();
+                    buffer = stream.getAvailable(0, INITIAL_TIMEOUT, TimeUnit.SECONDS);
+                    final long contentLength = stream.item.getContentLength();
                     // NB: Content-Length is the number of bytes in the body sent, not the total length of the resource
-                    headers.put("Content-Length", String.valueOf(length - offset));
+                    headers.put("Content-Length", String.valueOf(contentLength - offset));
                     headers.put("ETag", stream.item.etag());
 
                     if (startByte != 0) {
                         headers.put("Content-Range",
-                                String.format(Locale.ENGLISH, "%d-%d/%d", startByte, length - 1, length));
+                                String.format(Locale.ENGLISH, "%d-%d/%d", startByte, contentLength - 1, contentLength));
                     }
                     ByteBuffer header = getHeader(startByte, headers);
                     channel.write(header);
+                    headerWritten = true;
 
                     // since we already got some data for this track, ready to queue next one
-                    queueNextUrl(nextUrl, 10000);
+                    queueNextUrl(nextUrl, loader.getPreloadDelay());
 
                     if (request.getMethod().equalsIgnoreCase("HEAD")) break;
                 } else {
                     // subsequent chunks
-                    buffer = stream.get(TRANSFER_TIMEOUT, TimeUnit.SECONDS);
+                    buffer = stream.getAvailable(0, TRANSFER_TIMEOUT, TimeUnit.SECONDS);
                 }
 
                 if (stream.item == null || stream.item.getContentLength() == 0) {
@@ -377,7 +414,14 @@ public class StreamProxy implements Runnable {
                     throw e;
                 }
 
-                final int written = channel.write(buffer);
+                // write whatever has arrived, until the whole range has been written
+                int written = 0;
+                while (buffer.hasRemaining() && isRunning()) {
+                    final int n = channel.write(buffer);
+                    if (n == 0) break;
+                    written += n;
+                    buffer = stream.getAvailable(written, TRANSFER_TIMEOUT, TimeUnit.SECONDS);
+                }
 
                 offset += written;
                 if (written == 0 || offset >= stream.item.getContentLength()) {
@@ -386,17 +430,26 @@ public class StreamProxy implements Runnable {
                     break;
                 }
             } catch (TimeoutException e) {
+                // no longer waiting for it, the loader can stop prioritizing its range
+                stream.cancel(true);
                 // timeout happened before header write, take the chance to return a proper error code
-                if (offset == startByte) {
+                if (!headerWritten) {
                     channel.write(getErrorHeader(503, "Data read timeout"));
                 }
                 throw e;
+            } catch (IOException e) {
+                // most likely the player closed the connection, e.g. after seeking
+                stream.cancel(true);
+                throw e;
             } catch (ExecutionException e) {
                 // stream item got probably canceled
-                if (offset == startByte) {
+                if (!headerWritten) {
                     channel.write(getErrorHeader(stream.item.getHttpError(), "Error"));
                 }
                 throw e;
+            } finally {
+                // everything has been written, the buffers can be reused
+                stream.release();
             }
         }
     }
@@ -412,7 +465,7 @@ public class StreamProxy implements Runnable {
         return h;
     }
 
-    private void streamCompleteFile(HttpUriRequest request, String streamUrl, String nextUrl,
+    private void streamCompleteFile(HttpUriRequest request, String streamUrl, String nextUrl, long playId,
                                     File file, long offset,
                                     SocketChannel channel,
                                     Map<String, String> headers) throws IOException {
@@ -422,7 +475,7 @@ public class StreamProxy implements Runnable {
 
         if (request.getMethod().equalsIgnoreCase("HEAD")) return;
 
-        if (!loader.logPlaycount(streamUrl)) {
+        if (!loader.logPlaycount(streamUrl, playId)) {
             Log.w(LOG_TAG, "could not queue playcount log");
         }
 
@@ -2,10 +2,12 @@ package com.soundcloud.android.streaming;
 
 import static com.soundcloud.android.utils.IOUtils.mkdirs;
 
+import com.soundcloud.android.utils.BufferUtils;
 import com.soundcloud.android.utils.IOUtils;
 import org.jetbrains.annotations.NotNull;
 
 import android.content.Context;
+import android.os.AsyncTask;
 import android.util.Log;
 
 import java.io.File;
@@ -14,6 +16,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -26,76 +29,230 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class StreamStorage {
     static final String LOG_TAG = StreamStorage.class.getSimpleName();
 
     public static final int DEFAULT_CHUNK_SIZE = 128 * 1024; // 128k
     public static final int DEFAULT_PCT_OF_FREE_SPACE = 10;  // use 10% of sd card
+    public static final long DEFAULT_MAX_CACHE_SIZE = 200 * 1024 * 1024; // but never more than 200MB
 
     private static final int CLEANUP_INTERVAL = 20;
+    private static final int MAX_JOURNAL_RECORDS = 32; // compact index files after that many chunk records
+    private static final int LOCK_STRIPES = 16;
+    private static final int CHUNK_CACHE_CHUNKS = 8;   // number of chunks to keep in memory
+    private static final int POOLED_CHUNKS = 16;       // number of chunks worth of buffers kept for reuse
 
     public static final String INDEX_EXTENSION = "index";
     public static final String CHUNKS_EXTENSION = "chunks";
+    public static final String CHECKSUM_EXTENSION = "crc";
+    public static final String CATALOG_FILE = "catalog";
 
     public final int chunkSize;
 
     private Context mContext;
-    private File mBaseDir, mCompleteDir, mIncompleteDir;
-
-    private Map<String, StreamItem> mItems = new HashMap<String, StreamItem>();
-    private Set<String> mConvertingUrls = new HashSet<String>();
+    private File mBaseDir, mCompleteDir, mIncompleteDir, mCatalogFile;
+
+    private final ConcurrentMap<String, StreamItem> mItems = new ConcurrentHashMap<String, StreamItem>();
+    private final ConcurrentMap<String, FutureTask<StreamItem>> mPendingLoads =
+            new ConcurrentHashMap<String, FutureTask<StreamItem>>();
+    // guards the files of an item, striped by url hash so different items never contend
+    private final Object[] mLocks = new Object[LOCK_STRIPES];
+    private Set<String> mConvertingItems = Collections.synchronizedSet(new HashSet<String>());
+    private Set<String> mCompactingItems = Collections.synchronizedSet(new HashSet<String>());
+
+    private final UrlResolver mResolver;
+    private final CacheCatalog mCatalog = new CacheCatalog();
+    private final Object mCatalogLock = new Object();
+    // true while the catalog file on disk matches the cache contents
+    private final AtomicBoolean mCatalogClean = new AtomicBoolean();
+    private final ChunkCache mChunkCache;
+    private final BufferPool mBufferPool;
+    private final AtomicBoolean mCleaningUp = new AtomicBoolean();
+    private volatile String mCurrentHash, mNextHash;
+    private final AtomicInteger mStoreCount = new AtomicInteger(); // chunks are stored from several threads
 
     private final int mCleanupInterval;
+    private final boolean mPositionalWrites;
 
     public StreamStorage(Context context, File basedir) {
-        this(context, basedir, DEFAULT_CHUNK_SIZE, CLEANUP_INTERVAL);
+        this(context, basedir, DEFAULT_CHUNK_SIZE, CLEANUP_INTERVAL, true);
     }
 
     public StreamStorage(Context context, File basedir, int chunkSize, int cleanupInterval) {
+        this(context, basedir, chunkSize, cleanupInterval, false);
+    }
+
+    /**
+     * @param positionalWrites if true, chunks of new items get written to their position in a
+     *                         preallocated file instead of being appended in arrival order
+     */
+    public StreamStorage(Context context, File basedir, int chunkSize, int cleanupInterval, boolean positionalWrites) {
         mContext = context;
         mBaseDir = basedir;
         mIncompleteDir = new File(mBaseDir, "Incomplete");
         mCompleteDir = new File(mBaseDir, "Complete");
+        mCatalogFile = new File(mBaseDir, CATALOG_FILE);
+        mResolver = new UrlResolver(mCompleteDir);
         mCleanupInterval = cleanupInterval;
+        mPositionalWrites = positionalWrites;
+        for (int i = 0; i < mLocks.length; i++) {
+            mLocks[i] = new Object();
+        }
 
         mkdirs(mIncompleteDir);
         mkdirs(mCompleteDir);
 
         this.chunkSize = chunkSize;
+        mChunkCache = new ChunkCache((long) chunkSize * CHUNK_CACHE_CHUNKS);
+        mBufferPool = new BufferPool(chunkSize, (long) chunkSize * POOLED_CHUNKS);
+
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                loadCatalog();
+                return null;
+            }
+        }.execute();
     }
 
-    public synchronized boolean storeMetadata(StreamItem item) {
+    public boolean storeMetadata(StreamItem item) {
         verifyMetadata(item);
 
-        mItems.put(item.urlHash, item);
-        try {
-            File indexFile = incompleteIndexFileForUrl(item.streamItemUrl());
-            if (indexFile.exists() && !indexFile.delete()) Log.w(LOG_TAG, "could not delete "+indexFile);
-            item.toIndexFile(indexFile);
-            return true;
-        } catch (IOException e) {
-            if (IOUtils.isSDCardAvailable()) {
-                Log.e(LOG_TAG, "Error storing index data ", e);
+        synchronized (lockFor(item.urlHash)) {
+            mItems.put(item.urlHash, item);
+            // complete items have no index, their chunks are tracked by the checksum file
+            if (mResolver.isComplete(item.urlHash)) return true;
+            try {
+                item.toIndexFile(incompleteIndexFileForHash(item.urlHash));
+                return true;
+            } catch (IOException e) {
+                if (IOUtils.isSDCardAvailable()) {
+                    Log.e(LOG_TAG, "Error storing index data ", e);
+                }
+                return false;
             }
-            return false;
         }
     }
 
-    public synchronized @NotNull StreamItem getMetadata(String url) {
-        String hashed = StreamItem.urlHash(url);
-        if (!mItems.containsKey(hashed)) {
-            mItems.put(hashed, readMetadata(url));
+    /**
+     * Records a newly stored chunk by appending it to the index journal. Falls back to writing
+     * a full index if there is none on disk yet, and compacts the journal in the background
+     * once it gets too long.
+     */
+    /* package */ boolean storeChunkIndex(final StreamItem item, int chunkIndex) {
+        if (!item.hasIndexCheckpoint()) {
+            return storeMetadata(item);
+        }
+        synchronized (lockFor(item.urlHash)) {
+            try {
+                item.appendToIndexFile(incompleteIndexFileForHash(item.urlHash), chunkIndex);
+            } catch (IOException e) {
+                if (IOUtils.isSDCardAvailable()) {
+                    Log.e(LOG_TAG, "Error appending index data ", e);
+                }
+                return false;
+            }
         }
-        return mItems.get(hashed);
+        if (item.journalRecords() > MAX_JOURNAL_RECORDS && mCompactingItems.add(item.urlHash)) {
+            new AsyncTask<Void, Void, Boolean>() {
+                @Override
+                protected Boolean doInBackground(Void... params) {
+                    try {
+                        return compactMetadata(item);
+                    } finally {
+                        mCompactingItems.remove(item.urlHash);
+                    }
+                }
+            }.execute();
+        }
+        return true;
     }
 
-    public synchronized boolean removeMetadata(String url) {
-        return mItems.remove(StreamItem.urlHash(url)) != null;
+    private boolean compactMetadata(StreamItem item) {
+        synchronized (lockFor(item.urlHash)) {
+            // item might have been completed or removed in the meantime
+            if (mItems.get(item.urlHash) != item) return false;
+
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+                Log.d(LOG_TAG, "compacting index journal (" + item.journalRecords() + " records) for " + item.urlHash);
+            try {
+                item.toIndexFile(incompleteIndexFileForHash(item.urlHash));
+                return true;
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Error compacting index data", e);
+                return false;
+            }
+        }
     }
 
-    public ByteBuffer fetchStoredDataForUrl(String url, Range range) throws IOException {
+    /**
+     * Returns the metadata for the url, loading it from disk if necessary. Concurrent callers for
+     * the same url wait for a single load, loads never block callers for other urls.
+     */
+    public @NotNull StreamItem getMetadata(final String url) {
+        final String hashed = mResolver.urlHash(url);
+        final StreamItem cached = mItems.get(hashed);
+        if (cached != null) return cached;
+
+        final FutureTask<StreamItem> load = new FutureTask<StreamItem>(new Callable<StreamItem>() {
+            @Override
+            public StreamItem call() throws Exception {
+                final StreamItem loaded = readMetadata(url);
+                final StreamItem existing = mItems.putIfAbsent(hashed, loaded);
+                return existing != null ? existing : loaded;
+            }
+        });
+        FutureTask<StreamItem> pending = mPendingLoads.putIfAbsent(hashed, load);
+        if (pending == null) {
+            pending = load;
+            try {
+                load.run();
+            } finally {
+                mPendingLoads.remove(hashed, load);
+            }
+        }
+        return awaitLoad(pending);
+    }
+
+    private static StreamItem awaitLoad(FutureTask<StreamItem> load) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return load.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean removeMetadata(String url) {
+        return mItems.remove(mResolver.urlHash(url)) != null;
+    }
+
+    private Object lockFor(String urlHash) {
+        return mLocks[(urlHash.hashCode() & 0x7fffffff) % mLocks.length];
+    }
+
+    /**
+     * @return the stored data of the range, to be released by the caller
+     */
+    /* package */ PooledBuffer fetchStoredDataForUrl(String url, Range range) throws IOException {
         StreamItem item = getMetadata(url);
+        mCatalog.touch(item.urlHash);
 
         Range actualRange = range;
         if (item.getContentLength() > 0) {
@@ -109,15 +266,25 @@ public class StreamStorage {
             // optimise for most common case
             return getChunkData(url, chunkRange.start);
         } else {
-            ByteBuffer data = ByteBuffer.allocate(chunkRange.length * chunkSize);
-            // read all the chunks we need
-            for (int index : chunkRange) {
-                data.put(getChunkData(url, index));
+            final PooledBuffer buffer = mBufferPool.acquire(chunkRange.length * chunkSize);
+            try {
+                final ByteBuffer data = buffer.data();
+                // read all the chunks we need
+                for (int index : chunkRange) {
+                    final PooledBuffer chunk = getChunkData(url, index);
+                    try {
+                        data.put(chunk.data());
+                    } finally {
+                        chunk.release();
+                    }
+                }
+                // and adjust offsets
+                data.position(actualRange.start % chunkSize);
+                data.limit(actualRange.start % chunkSize + actualRange.length);
+                return buffer.view(data.slice().asReadOnlyBuffer());
+            } finally {
+                buffer.release();
             }
-            // and adjust offsets
-            data.position(actualRange.start % chunkSize);
-            data.limit(actualRange.start % chunkSize + actualRange.length);
-            return data.asReadOnlyBuffer();
         }
     }
 
@@ -134,21 +301,28 @@ public class StreamStorage {
      */
     public boolean storeData(final String url, ByteBuffer data, final int chunkIndex) throws IOException {
         if (data == null) throw new IllegalArgumentException("buffer is null");
-        else if (data.limit() == 0) {
+        return storeData(url, PooledBuffer.wrap(data), chunkIndex);
+    }
+
+    /**
+     * @param buffer the data to store, the in-memory cache keeps its own view of it
+     */
+    /* package */ boolean storeData(final String url, PooledBuffer buffer, final int chunkIndex) throws IOException {
+        final ByteBuffer data = buffer.data();
+        if (data.limit() == 0) {
             Log.w(LOG_TAG, "Not Storing Data. Content Length is Zero.");
             return false;
         }
-        // Do not add to complete files
-        else if (completeFileForUrl(url).exists()) {
-            if (Log.isLoggable(LOG_TAG, Log.DEBUG))
-                Log.d(LOG_TAG, "complete file exists, not adding data");
-            return false;
-        }
         else if (!IOUtils.isSDCardAvailable()) {
             Log.w(LOG_TAG, "storage not available, not adding data");
             return false;
         }
 
+        // Do not add to complete files, unless a corrupt chunk is being replaced
+        else if (mResolver.resolve(url).complete) {
+            return repairCompleteFile(url, buffer, chunkIndex);
+        }
+
         if (Log.isLoggable(LOG_TAG, Log.DEBUG))
             Log.d(LOG_TAG, String.format("Storing %d bytes at index %d for url %s",
                     data.limit(), chunkIndex, url));
@@ -161,48 +335,149 @@ public class StreamStorage {
             return false;
         }
 
-        // Prepare incomplete file
-        final File incompleteFile = incompleteFileForUrl(url);
-        appendToFile(data, incompleteFile);
+        final File incompleteFile = incompleteFileForHash(item.urlHash);
+        synchronized (lockFor(item.urlHash)) {
+            if (mItems.get(item.urlHash) != item) {
+                Log.w(LOG_TAG, "item has been removed while storing, not adding data");
+                return false;
+            }
+
+            final ByteBuffer chunk = data.duplicate();
 
-        // Add Index and save it
-        item.downloadedChunks.add(chunkIndex);
-        storeMetadata(item);
+            // Prepare incomplete file
+            if (item.downloadedChunks.isEmpty()) {
+                // layout is fixed once the first chunk has been written
+                item.setPositionalChunks(mPositionalWrites && item.getContentLength() > 0);
+            }
+            if (item.hasPositionalChunks()) {
+                if (writeToFile(data, incompleteFile, (long) chunkIndex * chunkSize, item.getContentLength())) {
+                    mCatalog.setSize(item.urlHash, item.getContentLength());
+                    markCatalogDirty();
+                }
+            } else {
+                appendToFile(data, incompleteFile);
+                mCatalog.addSize(item.urlHash, chunkSize);
+                markCatalogDirty();
+            }
+
+            // Add Index and save it
+            item.downloadedChunks.add(chunkIndex, BufferUtils.crc32(chunkContent(item, chunkIndex, chunk)));
+            advanceDigest(item, chunkIndex, chunk);
+            storeChunkIndex(item, chunkIndex);
+
+            mChunkCache.put(item.urlHash, chunkIndex, buffer);
+        }
+
+        mCatalog.touch(item.urlHash);
 
         if (item.downloadedChunks.size() == item.numberOfChunks(chunkSize)) {
-            new CompleteFileTask(item.getContentLength(), item.etag(), chunkSize, item.downloadedChunks) {
+            new CompleteFileTask(item.getContentLength(), item.etag(), chunkSize, item.downloadedChunks,
+                    item.hasPositionalChunks(), item.contentMd5(chunkSize)) {
                 @Override protected void onPreExecute() {
-                    mConvertingUrls.add(url);
+                    mConvertingItems.add(item.urlHash);
                 }
                 @Override protected void onPostExecute(Boolean success) {
                     if (success) {
+                        // before the index goes, so a reload never sees the complete file without checksums
+                        storeChecksums(item);
+                        mResolver.setComplete(item.urlHash, true);
                         removeIncompleteDataForItem(url);
-
+                        // keep the verified item, so its etag doesn't need to be computed from the file
+                        mItems.putIfAbsent(item.urlHash, item);
+                        mCatalog.setComplete(item.urlHash, item.getContentLength(), item.etag());
+                        markCatalogDirty();
                     } else {
                         removeAllDataForItem(url);
                     }
-                    mConvertingUrls.remove(url);
+                    mConvertingItems.remove(item.urlHash);
+                    // also persists the catalog
+                    cleanup();
                 }
-            }.execute(incompleteFile, completeFileForUrl(url));
+            }.execute(incompleteFile, completeFileForHash(item.urlHash));
+        }
+
+        if (mCleanupInterval > 0 && mStoreCount.incrementAndGet() % mCleanupInterval == 0) {
+            cleanup();
+        }
+        return true;
+    }
+
+    /**
+     * Writes a chunk which was removed from a complete file because it was corrupt.
+     */
+    private boolean repairCompleteFile(String url, PooledBuffer buffer, int chunkIndex) throws IOException {
+        final StreamItem item = getMetadata(url);
+        // only items which lost a chunk since completion know which chunks they are missing
+        if (item.downloadedChunks.isEmpty() || item.downloadedChunks.contains(chunkIndex)) {
+            if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+                Log.d(LOG_TAG, "complete file exists, not adding data");
+            return false;
+        }
+
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+            Log.d(LOG_TAG, String.format("Replacing chunk %d in complete file for url %s", chunkIndex, url));
+
+        synchronized (lockFor(item.urlHash)) {
+            final ByteBuffer data = buffer.data();
+            writeToFile(data, completeFileForHash(item.urlHash), (long) chunkIndex * chunkSize, item.getContentLength());
+            item.downloadedChunks.add(chunkIndex, BufferUtils.crc32(chunkContent(item, chunkIndex, buffer.data())));
+            storeChecksums(item);
+            mChunkCache.put(item.urlHash, chunkIndex, buffer);
         }
         return true;
     }
 
-    public ByteBuffer getChunkData(URL url, int chunkIndex) throws IOException {
+    /**
+     * Persists the chunk checksums of a complete file, which has no index file any more.
+     */
+    private boolean storeChecksums(StreamItem item) {
+        synchronized (lockFor(item.urlHash)) {
+            try {
+                item.toChecksumFile(checksumFileForHash(item.urlHash));
+                return true;
+            } catch (IOException e) {
+                if (IOUtils.isSDCardAvailable()) {
+                    Log.e(LOG_TAG, "Error storing checksums ", e);
+                }
+                return false;
+            }
+        }
+    }
+
+    /* package */ PooledBuffer getChunkData(URL url, int chunkIndex) throws IOException {
         return getChunkData(url.toString(), chunkIndex);
     }
 
-    public ByteBuffer getChunkData(String url, int chunkIndex) throws IOException {
-        if (completeFileForUrl(url).exists()) {
-            return completeDataForChunk(url, chunkIndex);
+    /**
+     * @return the data of the chunk, to be released by the caller
+     */
+    /* package */ PooledBuffer getChunkData(String url, int chunkIndex) throws IOException {
+        final UrlResolver.Resolved resolved = mResolver.resolve(url);
+        final PooledBuffer cached = mChunkCache.get(resolved.urlHash, chunkIndex);
+        if (cached != null) {
+            return cached;
+        }
+
+        final PooledBuffer data;
+        if (resolved.complete) {
+            data = completeDataForChunk(url, chunkIndex);
         } else {
-            return incompleteDataForChunk(url, chunkIndex);
+            data = incompleteDataForChunk(url, chunkIndex);
         }
+        // the bytes are shared with the cache, nobody gets to change them
+        final PooledBuffer readOnly = data.view(data.data().asReadOnlyBuffer());
+        data.release();
+        mChunkCache.put(resolved.urlHash, chunkIndex, readOnly);
+        return readOnly;
+    }
+
+    /* package */ ChunkCache getChunkCache() {
+        return mChunkCache;
     }
 
     public Index getMissingChunksForItem(String url, Range chunkRange) {
         //we have everything if the complete file exists
-        if (completeFileForUrl(url).exists()) {
+        if (isComplete(url)) {
             return Index.empty();
         } else {
             StreamItem item = getMetadata(url);
@@ -222,16 +497,206 @@ public class StreamStorage {
         }
     }
 
+    /**
+     * @return true if the complete file exists and none of its chunks are waiting to be replaced
+     */
+    /* package */ boolean isComplete(String url) {
+        if (!mResolver.resolve(url).complete) return false;
+
+        // items completed in an earlier session don't know about their chunks
+        final StreamItem item = getMetadata(url);
+        return item.downloadedChunks.isEmpty() || item.downloadedChunks.size() == item.numberOfChunks(chunkSize);
+    }
+
+    /**
+     * Marks the items which are currently being played and queued up next, they will never
+     * be evicted from the cache.
+     *
+     * @param url     the url currently streaming
+     * @param nextUrl the next url in the queue, or null
+     */
+    /* package */ void setPlaybackItems(String url, String nextUrl) {
+        mCurrentHash = url == null ? null : mResolver.urlHash(url);
+        mNextHash = nextUrl == null ? null : mResolver.urlHash(nextUrl);
+        if (mCurrentHash != null) mCatalog.touch(mCurrentHash);
+    }
+
+    /**
+     * Schedules a cleanup of the cache in the background, unless one is already running.
+     */
+    /* package */ void cleanup() {
+        if (mCleaningUp.compareAndSet(false, true)) {
+            new AsyncTask<Void, Void, Integer>() {
+                @Override
+                protected Integer doInBackground(Void... params) {
+                    try {
+                        return evict();
+                    } finally {
+                        mCleaningUp.set(false);
+                    }
+                }
+            }.execute();
+        }
+    }
+
+    /**
+     * Removes cached items, least recently used first, until the cache fits into its budget.
+     * @return the number of evicted items
+     */
+    /* package */ int evict() {
+        loadCatalog();
+        final long budget = getCacheBudget();
+        int evicted = 0;
+        for (CacheCatalog.Entry e : mCatalog.evictionCandidates()) {
+            if (mCatalog.getUsedSpace() <= budget) break;
+
+            if (isProtected(e.urlHash)) {
+                if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+                    Log.d(LOG_TAG, "not evicting protected item " + e);
+            } else {
+                if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+                    Log.d(LOG_TAG, "evicting " + e);
+                removeAllDataForHash(e.urlHash);
+                evicted++;
+            }
+        }
+        if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+            Log.d(LOG_TAG, String.format("evicted %d items, %d of %d bytes used",
+                    evicted, mCatalog.getUsedSpace(), budget));
+        storeCatalog();
+        return evicted;
+    }
+
+    /* package */ long getCacheBudget() {
+        return IOUtils.getUsableSpace(mCatalog.getUsedSpace(), getSpaceLeft(),
+                DEFAULT_MAX_CACHE_SIZE, DEFAULT_PCT_OF_FREE_SPACE / 100d);
+    }
+
+    private boolean isProtected(String urlHash) {
+        return urlHash.equals(mCurrentHash) ||
+               urlHash.equals(mNextHash) ||
+               mConvertingItems.contains(urlHash);
+    }
+
+    /**
+     * Loads the catalog persisted by a previous session, or rebuilds it from the cache
+     * directories if there is none. Safe to call repeatedly, only the first call does any work.
+     */
+    /* package */ void loadCatalog() {
+        if (mCatalog.isLoaded()) return;
+        synchronized (mCatalogLock) {
+            if (mCatalog.isLoaded()) return;
+
+            List<CacheCatalog.Entry> entries = null;
+            if (mCatalogFile.exists()) {
+                try {
+                    entries = CacheCatalog.fromFile(mCatalogFile);
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "could not read cache catalog, rescanning", e);
+                }
+            }
+            if (entries != null) {
+                mCatalog.merge(entries);
+                mCatalogClean.set(true);
+                if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+                    Log.d(LOG_TAG, "loaded catalog with " + entries.size() + " entries");
+            } else {
+                scanCache();
+                mCatalog.setLoaded();
+                storeCatalog();
+                if (Log.isLoggable(LOG_TAG, Log.DEBUG))
+                    Log.d(LOG_TAG, "rebuilt catalog with " + mCatalog.size() + " entries");
+            }
+        }
+    }
+
+    /**
+     * Persists the catalog, unless the file on disk is still up to date.
+     */
+    private void storeCatalog() {
+        synchronized (mCatalogLock) {
+            if (!mCatalog.isLoaded() || mCatalogClean.get()) return;
+
+            // set before taking the snapshot, any change from now on invalidates the file again
+            mCatalogClean.set(true);
+            try {
+                mCatalog.toFile(mCatalogFile);
+            } catch (IOException e) {
+                mCatalogClean.set(false);
+                if (IOUtils.isSDCardAvailable()) {
+                    Log.e(LOG_TAG, "Error storing cache catalog", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the persisted catalog once the cache contents change, until it gets stored again.
+     * If the process dies in between, the next session rebuilds the catalog from disk instead
+     * of trusting a stale one.
+     */
+    private void markCatalogDirty() {
+        if (mCatalogClean.compareAndSet(true, false)) {
+            synchronized (mCatalogLock) {
+                IOUtils.deleteFile(mCatalogFile);
+            }
+        }
+    }
+
+    /**
+     * Adds everything on disk to the catalog, so items cached by previous sessions can be
+     * evicted as well.
+     */
+    private void scanCache() {
+        Map<String, long[]> found = new HashMap<String, long[]>();
+        for (File f : allFiles(null)) {
+            addFileStats(found, f);
+        }
+        for (File f : IOUtils.nullSafeListFiles(mIncompleteDir, extension(INDEX_EXTENSION))) {
+            addFileStats(found, f);
+        }
+        for (Map.Entry<String, long[]> e : found.entrySet()) {
+            mCatalog.updateFromDisk(e.getKey(), e.getValue()[0], e.getValue()[1]);
+        }
+    }
+
+    private static void addFileStats(Map<String, long[]> found, File f) {
+        final String urlHash = IOUtils.removeExtension(f).getName();
+        long[] stats = found.get(urlHash);
+        if (stats == null) {
+            stats = new long[2];
+            found.put(urlHash, stats);
+        }
+        stats[0] += f.length();
+        stats[1] = Math.max(stats[1], f.lastModified());
+    }
+
     /* package */ File completeFileForUrl(String url) {
-        return new File(mCompleteDir, StreamItem.urlHash(url));
+        return mResolver.resolve(url).completeFile;
     }
 
     /* package */ File incompleteFileForUrl(String url) {
-        return new File(mIncompleteDir, StreamItem.urlHash(url)+"."+CHUNKS_EXTENSION);
+        return incompleteFileForHash(mResolver.urlHash(url));
     }
 
     /* package */ File incompleteIndexFileForUrl(String url) {
-        return new File(mIncompleteDir, StreamItem.urlHash(url)+"."+INDEX_EXTENSION);
+        return incompleteIndexFileForHash(mResolver.urlHash(url));
+    }
+
+    private File completeFileForHash(String urlHash) {
+        return new File(mCompleteDir, urlHash);
+    }
+
+    private File checksumFileForHash(String urlHash) {
+        return new File(mCompleteDir, urlHash+"."+CHECKSUM_EXTENSION);
+    }
+
+    private File incompleteFileForHash(String urlHash) {
+        return new File(mIncompleteDir, urlHash+"."+CHUNKS_EXTENSION);
+    }
+
+    private File incompleteIndexFileForHash(String urlHash) {
+        return new File(mIncompleteDir, urlHash+"."+INDEX_EXTENSION);
     }
 
     private boolean appendToFile(ByteBuffer data, File incompleteFile) throws IOException {
@@ -247,8 +712,32 @@ public class StreamStorage {
         return true;
     }
 
+    /**
+     * Writes the data at the given position, preallocating the file first if necessary.
+     * @return true if the file had to be preallocated
+     */
+    private boolean writeToFile(ByteBuffer data, File incompleteFile, long position, long length) throws IOException {
+        mkdirs(incompleteFile.getParentFile());
+        RandomAccessFile raf = new RandomAccessFile(incompleteFile, "rw");
+        try {
+            final boolean preallocate = raf.length() < length;
+            if (preallocate) {
+                // sparse on most filesystems, will be truncated to the content length on completion
+                raf.setLength(length);
+            }
+            final FileChannel fc = raf.getChannel();
+            while (data.hasRemaining()) {
+                position += fc.write(data, position);
+            }
+            return preallocate;
+        } finally {
+            raf.close();
+        }
+    }
+
     private @NotNull StreamItem readMetadata(String url) {
-        File f = incompleteIndexFileForUrl(url);
+        final UrlResolver.Resolved resolved = mResolver.resolve(url);
+        File f = incompleteIndexFileForHash(resolved.urlHash);
         if (f.exists()) {
             try {
                 return StreamItem.fromIndexFile(f);
@@ -257,66 +746,191 @@ public class StreamStorage {
                 removeAllDataForItem(url);
                 return new StreamItem(url);
             }
-        } else if (completeFileForUrl(url).exists()) {
-            return new StreamItem(url, completeFileForUrl(url));
+        } else if (resolved.complete) {
+            final StreamItem item = completeItem(url, resolved);
+            final File checksums = checksumFileForHash(resolved.urlHash);
+            if (checksums.exists()) {
+                try {
+                    item.readChecksumFile(checksums);
+                } catch (IOException e) {
+                    // the file can still be served, just without verification
+                    Log.w(LOG_TAG, "could not read checksums, deleting", e);
+                    IOUtils.deleteFile(checksums);
+                    return completeItem(url, resolved);
+                }
+            }
+            return item;
         } else {
             // we don't have anything yet
             return new StreamItem(url);
         }
     }
 
+    private StreamItem completeItem(String url, UrlResolver.Resolved resolved) {
+        final String etag = mCatalog.etagOf(resolved.urlHash);
+        // the catalog knows the etag of items completed by earlier sessions, saves hashing the file
+        return etag != null ? new StreamItem(url, resolved.completeFile.length(), etag) :
+                              new StreamItem(url, resolved.completeFile);
+    }
+
     private void removeAllDataForItem(String url) {
         Log.w(LOG_TAG, "removing all data for "+url);
-        removeCompleteDataForItem(url);
-        removeIncompleteDataForItem(url);
+        removeAllDataForHash(mResolver.urlHash(url));
+    }
+
+    private void removeAllDataForHash(String urlHash) {
+        synchronized (lockFor(urlHash)) {
+            IOUtils.deleteFile(completeFileForHash(urlHash));
+            IOUtils.deleteFile(checksumFileForHash(urlHash));
+            IOUtils.deleteFile(incompleteFileForHash(urlHash));
+            IOUtils.deleteFile(incompleteIndexFileForHash(urlHash));
+            mItems.remove(urlHash);
+            mCatalog.remove(urlHash);
+            mChunkCache.removeItem(urlHash);
+            mResolver.setComplete(urlHash, false);
+        }
+        markCatalogDirty();
     }
 
     private boolean removeIncompleteDataForItem(String url) {
-        final File incompleteFile = incompleteFileForUrl(url);
-        final File indexFile = incompleteIndexFileForUrl(url);
-        boolean fileDeleted = true, indexDeleted = true;
-        if (incompleteFile.exists()) fileDeleted = incompleteFile.delete();
-        if (indexFile.exists()) indexDeleted = indexFile.delete();
-        mItems.remove(StreamItem.urlHash(url));
-        return fileDeleted && indexDeleted;
+        final String urlHash = mResolver.urlHash(url);
+        synchronized (lockFor(urlHash)) {
+            final File incompleteFile = incompleteFileForHash(urlHash);
+            final File indexFile = incompleteIndexFileForHash(urlHash);
+            boolean fileDeleted = true, indexDeleted = true;
+            if (incompleteFile.exists()) fileDeleted = incompleteFile.delete();
+            if (indexFile.exists()) indexDeleted = indexFile.delete();
+            mItems.remove(urlHash);
+            return fileDeleted && indexDeleted;
+        }
     }
 
-    private boolean removeCompleteDataForItem(String url) {
-        final File completeFile = completeFileForUrl(url);
-        return completeFile.exists() && completeFile.delete();
+    /* package */ PooledBuffer incompleteDataForChunk(String url, int chunkIndex) throws IOException {
+        return incompleteDataForChunk(getMetadata(url), chunkIndex);
     }
 
-    /* package */ ByteBuffer incompleteDataForChunk(String url, int chunkIndex) throws IOException {
-        StreamItem item = getMetadata(url);
+    private PooledBuffer incompleteDataForChunk(StreamItem item, int chunkIndex) throws IOException {
         if (!item.downloadedChunks.contains(chunkIndex)) {
             throw new FileNotFoundException("download chunk not available");
         }
-        int readLength = chunkIndex == item.numberOfChunks(chunkSize) ? (int) item.getContentLength() % chunkSize : chunkSize;
-        return readBuffer(incompleteFileForUrl(url), item.downloadedChunks.indexOf(chunkIndex) * chunkSize, readLength);
+        final long position = item.hasPositionalChunks() ? chunkIndex : item.downloadedChunks.slotOf(chunkIndex);
+        return verifyChunk(item, chunkIndex,
+                readBuffer(incompleteFileForHash(item.urlHash), position * chunkSize, chunkLength(item, chunkIndex)));
+    }
+
+    /**
+     * Checks the data read from disk against the checksum taken when the chunk was stored. Corrupt
+     * chunks are removed, so they get fetched again.
+     */
+    private PooledBuffer verifyChunk(StreamItem item, int chunkIndex, PooledBuffer data) throws CorruptChunkException {
+        if (item.downloadedChunks.hasCrc(chunkIndex) &&
+            BufferUtils.crc32(data.data()) != item.downloadedChunks.crcOf(chunkIndex)) {
+
+            data.release();
+            Log.w(LOG_TAG, "chunk " + chunkIndex + " of " + item.urlHash + " is corrupt, removing");
+            synchronized (lockFor(item.urlHash)) {
+                final boolean removed = item.downloadedChunks.remove(chunkIndex);
+                if (!mResolver.isComplete(item.urlHash)) {
+                    // write a checkpoint, so the empty slot survives a restart
+                    if (removed) storeMetadata(item);
+                } else if (item.downloadedChunks.isEmpty()) {
+                    // without any chunks left the file would count as complete again, start over
+                    removeAllDataForHash(item.urlHash);
+                } else if (removed) {
+                    // so the chunk is still missing after a restart, until it has been replaced
+                    storeChecksums(item);
+                }
+            }
+            throw new CorruptChunkException(item.streamItemUrl(), chunkIndex);
+        }
+        return data;
+    }
+
+    /**
+     * @return a view of the content bytes of the chunk, excluding any padding
+     */
+    private ByteBuffer chunkContent(StreamItem item, int chunkIndex, ByteBuffer chunk) {
+        final ByteBuffer content = chunk.duplicate();
+        content.limit(Math.min(content.limit(), content.position() + chunkLength(item, chunkIndex)));
+        return content;
     }
 
-    /* package */ ByteBuffer completeDataForChunk(String url, long chunkIndex) throws IOException {
-        final long totalChunks = getMetadata(url).numberOfChunks(chunkSize);
+    /**
+     * @return the number of content bytes in the chunk, which is less than the chunk size for the last chunk
+     */
+    private int chunkLength(StreamItem item, int chunkIndex) {
+        if (item.getContentLength() <= 0) return chunkSize;
+        return (int) Math.max(0, Math.min(chunkSize, item.getContentLength() - (long) chunkIndex * chunkSize));
+    }
+
+    /**
+     * Feeds all chunks which are now contiguous from the start of the content into the digest
+     * of the item, so the complete file can be verified without hashing it again.
+     */
+    private void advanceDigest(StreamItem item, int chunkIndex, ByteBuffer chunk) {
+        final int numberOfChunks = item.numberOfChunks(chunkSize);
+        try {
+            for (int next = item.digestedChunks();
+                 next < numberOfChunks && item.downloadedChunks.contains(next);
+                 next = item.digestedChunks()) {
+
+                if (next == chunkIndex) {
+                    item.updateDigest(chunkContent(item, next, chunk));
+                } else {
+                    final PooledBuffer data = incompleteDataForChunk(item, next);
+                    try {
+                        item.updateDigest(chunkContent(item, next, data.data()));
+                    } finally {
+                        data.release();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // digest stays behind, the complete file will be hashed instead
+            Log.w(LOG_TAG, "could not read chunk for digest", e);
+        }
+    }
+
+    /* package */ PooledBuffer completeDataForChunk(String url, long chunkIndex) throws IOException {
+        final StreamItem item = getMetadata(url);
+        final long totalChunks = item.numberOfChunks(chunkSize);
         if (chunkIndex >= totalChunks) {
             throw new IOException("Requested invalid chunk index. Requested index " + chunkIndex + " of size " + totalChunks);
+        } else if (!item.downloadedChunks.isEmpty() && !item.downloadedChunks.contains((int) chunkIndex)) {
+            // removed because it was corrupt, still waiting to be replaced
+            throw new CorruptChunkException(url, (int) chunkIndex);
+        }
+        final PooledBuffer data;
+        try {
+            data = readBuffer(completeFileForHash(item.urlHash), chunkIndex * chunkSize, chunkSize);
+        } catch (FileNotFoundException e) {
+            // deleted behind our back, start over
+            Log.w(LOG_TAG, "complete file for " + url + " has disappeared");
+            removeAllDataForHash(item.urlHash);
+            throw e;
         }
-        return readBuffer(completeFileForUrl(url), chunkIndex * chunkSize, chunkSize);
+        return verifyChunk(item, (int) chunkIndex, data);
     }
 
-    private ByteBuffer readBuffer(File f, long pos, int length) throws IOException {
-        if (!f.exists()) throw new FileNotFoundException("file "+f+" does not exist");
+    private PooledBuffer readBuffer(File f, long pos, int length) throws IOException {
         FileChannel fc = new FileInputStream(f).getChannel();
-        fc.position(pos);
-        ByteBuffer bb = ByteBuffer.allocate(length);
+        final PooledBuffer buffer = mBufferPool.acquire(length);
         try {
+            fc.position(pos);
+            final ByteBuffer bb = buffer.data();
             fc.read(bb);
             bb.flip();
-            return bb;
+            return buffer.view(bb.slice());
         } finally {
+            buffer.release();
             fc.close();
         }
     }
 
+    /* package */ BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
     private List<File> allFiles(Comparator<File> comparator) {
         final List<File> files = new ArrayList<File>();
         File[] chunks = IOUtils.nullSafeListFiles(mIncompleteDir, extension(CHUNKS_EXTENSION));
@@ -333,17 +947,8 @@ public class StreamStorage {
 
 
     /* package */ long getUsedSpace() {
-        long currentlyUsedSpace = 0;
-        File[] complete = IOUtils.nullSafeListFiles(mCompleteDir, null);
-        for (File f : complete) {
-            currentlyUsedSpace += f.length();
-        }
-
-        File[] incomplete = IOUtils.nullSafeListFiles(mIncompleteDir, null);
-        for (File f : incomplete) {
-            currentlyUsedSpace += f.length();
-        }
-        return currentlyUsedSpace;
+        loadCatalog();
+        return mCatalog.getUsedSpace();
     }
 
     /* package */ long getSpaceLeft() {
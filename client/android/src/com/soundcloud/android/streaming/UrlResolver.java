@@ -0,0 +1,82 @@
+package com.soundcloud.android.streaming;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the url hash, complete file and completion state of recently used urls, so
+ * the per-chunk paths neither hash urls nor stat files. {@link StreamStorage} keeps the
+ * completion state up to date when items get completed or removed.
+ */
+class UrlResolver {
+    private static final int MAX_ENTRIES = 64;
+
+    private final File mCompleteDir;
+    private final Map<String, Resolved> mByHash = new HashMap<String, Resolved>();
+    private final LinkedHashMap<String, Resolved> mByUrl = new LinkedHashMap<String, Resolved>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Resolved> eldest) {
+            if (size() > MAX_ENTRIES) {
+                mByHash.remove(eldest.getValue().urlHash);
+                return true;
+            } else {
+                return false;
+            }
+        }
+    };
+
+    static final class Resolved {
+        final String urlHash;
+        final File completeFile;
+        volatile boolean complete;
+
+        Resolved(String urlHash, File completeFile, boolean complete) {
+            this.urlHash = urlHash;
+            this.completeFile = completeFile;
+            this.complete = complete;
+        }
+
+        @Override
+        public String toString() {
+            return "Resolved{" +
+                    "urlHash='" + urlHash + '\'' +
+                    ", complete=" + complete +
+                    '}';
+        }
+    }
+
+    public UrlResolver(File completeDir) {
+        mCompleteDir = completeDir;
+    }
+
+    /**
+     * Only the first lookup of a url hashes it and checks for its complete file.
+     */
+    public synchronized Resolved resolve(String url) {
+        Resolved r = mByUrl.get(url);
+        if (r == null) {
+            final String urlHash = StreamItem.urlHash(url);
+            final File completeFile = new File(mCompleteDir, urlHash);
+            r = new Resolved(urlHash, completeFile, completeFile.exists());
+            mByUrl.put(url, r);
+            mByHash.put(urlHash, r);
+        }
+        return r;
+    }
+
+    public String urlHash(String url) {
+        return resolve(url).urlHash;
+    }
+
+    public synchronized boolean isComplete(String urlHash) {
+        final Resolved r = mByHash.get(urlHash);
+        return r != null ? r.complete : new File(mCompleteDir, urlHash).exists();
+    }
+
+    public synchronized void setComplete(String urlHash, boolean complete) {
+        final Resolved r = mByHash.get(urlHash);
+        if (r != null) r.complete = complete;
+    }
+}
@@ -10,6 +10,7 @@ import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
 
 public class BufferUtils {
     private BufferUtils() {
@@ -66,6 +67,25 @@ public class BufferUtils {
         }
     }
 
+    /**
+     * @return the CRC32 of the remaining bytes, the position of the buffer is left unchanged
+     */
+    public static int crc32(ByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            final ByteBuffer src = buffer.duplicate();
+            final byte[] tmp = new byte[Math.min(src.remaining(), 8192)];
+            while (src.hasRemaining()) {
+                final int n = Math.min(src.remaining(), tmp.length);
+                src.get(tmp, 0, n);
+                crc.update(tmp, 0, n);
+            }
+        }
+        return (int) crc.getValue();
+    }
+
     public static ByteBuffer allocateAudioBuffer(int size) {
         ByteBuffer bb = ByteBuffer.allocateDirect(size);
         bb.order(ByteOrder.LITTLE_ENDIAN);
@@ -57,6 +57,7 @@ public class LLQueue extends BaseAdapter implements PlayQueueManager, WaveformCo
     private int mCurrentPosition;
 
     private static final long MINIMUM_PROGRESS_PERIOD = 40;
+    private static final int RESOLVE_AHEAD = 3; // tracks after the current one to resolve before they play
     private boolean mShowingSmoothProgress;
 
     private long lastProgressTimestamp;
@@ -302,9 +303,29 @@ public class LLQueue extends BaseAdapter implements PlayQueueManager, WaveformCo
 
             }
             mPlaybackService.openCurrent();
+            resolveUpcomingStreams();
         }
     }
 
+    /**
+     * Resolves the stream urls of the current and the next few tracks in one go, so playback
+     * can start without waiting for the resolver.
+     */
+    public void resolveUpcomingStreams() {
+        final CloudPlaybackService service = CloudPlaybackService.getInstance();
+        if (service == null || mTracks == null) return;
+
+        final List<String> streamUrls = new ArrayList<String>(RESOLVE_AHEAD + 1);
+        final int end = Math.min(mTracks.size(), mCurrentPosition + RESOLVE_AHEAD + 1);
+        for (int i = Math.max(0, mCurrentPosition); i < end; i++) {
+            final Track track = getItem(i);
+            if (track != null && !TextUtils.isEmpty(track.getStreamUrl())) {
+                streamUrls.add(track.getStreamUrl());
+            }
+        }
+        service.resolveStreamUrls(streamUrls);
+    }
+
     public void setPlaybackService(@Nullable CloudPlaybackService mPlaybackService) {
         this.mPlaybackService = mPlaybackService;
     }
@@ -510,6 +531,7 @@ public class LLQueue extends BaseAdapter implements PlayQueueManager, WaveformCo
         protected void onPostExecute(List<PlayQueueItem> tracks) {
             mTracks = tracks;
             notifyDataSetChanged();
+            resolveUpcomingStreams();
         }
     }
 